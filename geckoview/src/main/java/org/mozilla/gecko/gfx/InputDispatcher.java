@@ -0,0 +1,238 @@
+package org.mozilla.gecko.gfx;
+
+import org.mozilla.geckoview.GeckoSession;
+import org.mozilla.geckoview.InputLatency;
+
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Sends the engine-bound input calls of {@link PanZoomController} to its
+ * {@link GeckoSession}, either directly on the calling thread or, when threaded
+ * dispatch is enabled, from a dedicated input thread so that a slow engine call
+ * cannot block the UI thread.
+ *
+ * In threaded mode, the UI thread writes each call as a compact record into a
+ * fixed-size ring, which the input thread consumes in order. The ring is a
+ * single-producer/single-consumer queue: each side only ever writes its own
+ * index, and the volatile index writes publish the records, so neither side
+ * takes a lock. The input thread parks when the ring is empty and is unparked
+ * by the next record. If the ring is ever full, the UI thread yields until the
+ * input thread has made room.
+ *
+ * Every call is recorded as an {@link InputLatency#STAGE_DISPATCH} sample, from
+ * the time it is made here to the time the session returns.
+ */
+/* package */ final class InputDispatcher implements Runnable {
+  private static final String THREAD_NAME = "InputDispatch";
+
+  private static final int CAPACITY = 256; // Must be a power of two.
+  private static final int MASK = CAPACITY - 1;
+
+  private static final int TYPE_CLICK = 0;
+  private static final int TYPE_SCROLL_START = 1;
+  private static final int TYPE_SCROLL = 2;
+  private static final int TYPE_SCROLL_END = 3;
+
+  private final GeckoSession mSession;
+  private final PanZoomController.LatencyRecorder mLatency;
+
+  // Record fields. Calls that take fewer arguments leave the rest unused.
+  private final int[] mType = new int[CAPACITY];
+  private final int[] mArg0 = new int[CAPACITY];
+  private final int[] mArg1 = new int[CAPACITY];
+  private final int[] mArg2 = new int[CAPACITY];
+  private final int[] mArg3 = new int[CAPACITY];
+  private final long[] mEnqueueTime = new long[CAPACITY];
+
+  // Next record to consume; only written by the input thread.
+  private volatile long mHead;
+  // Next record to produce; only written by the UI thread.
+  private volatile long mTail;
+
+  private Thread mThread;
+  private volatile boolean mRunning;
+  private volatile boolean mParked;
+
+  // Metrics. Depth is written by the UI thread, waits by the input thread.
+  private int mMaxDepth;
+  private volatile long mWaitCount;
+  private volatile long mWaitSum;
+  private volatile long mWaitMax;
+
+  /* package */ InputDispatcher(final GeckoSession session,
+                               final PanZoomController.LatencyRecorder latency) {
+    mSession = session;
+    mLatency = latency;
+  }
+
+  public boolean isThreaded() {
+    return mThread != null;
+  }
+
+  public void setThreaded(final boolean threaded) {
+    if (threaded == isThreaded()) {
+      return;
+    }
+
+    if (threaded) {
+      mRunning = true;
+      mThread = new Thread(this, THREAD_NAME);
+      mThread.setDaemon(true);
+      mThread.start();
+      return;
+    }
+
+    // Let the input thread drain the ring, so that calls made directly from
+    // now on cannot overtake calls that are still queued.
+    final Thread thread = mThread;
+    mRunning = false;
+    LockSupport.unpark(thread);
+    boolean interrupted = false;
+    while (thread.isAlive()) {
+      try {
+        thread.join();
+      } catch (final InterruptedException e) {
+        interrupted = true;
+      }
+    }
+    mThread = null;
+    if (interrupted) {
+      Thread.currentThread().interrupt();
+    }
+  }
+
+  public int getQueueDepth() {
+    return (int)(mTail - mHead);
+  }
+
+  public int getMaxQueueDepth() {
+    return mMaxDepth;
+  }
+
+  public long getMeanWaitNanos() {
+    final long count = mWaitCount;
+    return count == 0 ? 0 : mWaitSum / count;
+  }
+
+  public long getMaxWaitNanos() {
+    return mWaitMax;
+  }
+
+  public void resetMetrics() {
+    mMaxDepth = 0;
+    // Racy with respect to the input thread, which only matters for the
+    // records being dispatched at the time of the reset.
+    mWaitCount = 0;
+    mWaitSum = 0;
+    mWaitMax = 0;
+  }
+
+  // Claims the next slot, waiting for the input thread if the ring is full.
+  private int claim(final int type) {
+    final long tail = mTail;
+    while (tail - mHead >= CAPACITY) {
+      Thread.yield();
+    }
+    final int slot = (int)(tail & MASK);
+    mType[slot] = type;
+    return slot;
+  }
+
+  private void publish(final int slot) {
+    mEnqueueTime[slot] = System.nanoTime();
+    final long tail = mTail + 1;
+    mTail = tail;
+
+    final int depth = (int)(tail - mHead);
+    if (depth > mMaxDepth) {
+      mMaxDepth = depth;
+    }
+
+    if (mParked) {
+      LockSupport.unpark(mThread);
+    }
+  }
+
+  // In direct mode the ring is empty, so the claimed slot serves as scratch
+  // space and the record is dispatched right away without being published.
+  private void post(final int type, final int arg0, final int arg1, final int arg2,
+                    final int arg3) {
+    final int slot = claim(type);
+    mArg0[slot] = arg0;
+    mArg1[slot] = arg1;
+    mArg2[slot] = arg2;
+    mArg3[slot] = arg3;
+    if (mThread == null) {
+      final long start = System.nanoTime();
+      dispatch(slot);
+      mLatency.record(InputLatency.STAGE_DISPATCH, System.nanoTime() - start);
+      return;
+    }
+    publish(slot);
+  }
+
+  public void click(final int x, final int y) {
+    post(TYPE_CLICK, x, y, 0, 0);
+  }
+
+  public void scrollStart(final int deltaX, final int deltaY, final int x, final int y) {
+    post(TYPE_SCROLL_START, deltaX, deltaY, x, y);
+  }
+
+  public void scroll(final int deltaX, final int deltaY, final int x, final int y) {
+    post(TYPE_SCROLL, deltaX, deltaY, x, y);
+  }
+
+  public void scrollEnd(final int deltaX, final int deltaY, final int x, final int y) {
+    post(TYPE_SCROLL_END, deltaX, deltaY, x, y);
+  }
+
+  @Override
+  public void run() {
+    for (;;) {
+      final long head = mHead;
+      if (head == mTail) {
+        if (!mRunning) {
+          return;
+        }
+        mParked = true;
+        // Check again after announcing that we are parking, so that a record
+        // published in between is not left waiting for the next one.
+        if (head == mTail && mRunning) {
+          LockSupport.park(this);
+        }
+        mParked = false;
+        continue;
+      }
+
+      final int slot = (int)(head & MASK);
+      final long wait = System.nanoTime() - mEnqueueTime[slot];
+      mWaitSum += wait;
+      mWaitCount++;
+      if (wait > mWaitMax) {
+        mWaitMax = wait;
+      }
+
+      dispatch(slot);
+      mLatency.record(InputLatency.STAGE_DISPATCH, System.nanoTime() - mEnqueueTime[slot]);
+      mHead = head + 1;
+    }
+  }
+
+  private void dispatch(final int slot) {
+    switch (mType[slot]) {
+      case TYPE_CLICK:
+        mSession.click(mArg0[slot], mArg1[slot]);
+        break;
+      case TYPE_SCROLL_START:
+        mSession.scrollStart(mArg0[slot], mArg1[slot], mArg2[slot], mArg3[slot]);
+        break;
+      case TYPE_SCROLL:
+        mSession.scroll(mArg0[slot], mArg1[slot], mArg2[slot], mArg3[slot]);
+        break;
+      case TYPE_SCROLL_END:
+        mSession.scrollEnd(mArg0[slot], mArg1[slot], mArg2[slot], mArg3[slot]);
+        break;
+    }
+  }
+}
@@ -0,0 +1,182 @@
+package org.mozilla.gecko.gfx;
+
+import android.util.Log;
+import android.view.MotionEvent;
+
+/**
+ * A fixed-capacity ring of input events, used by {@link PanZoomController} to
+ * hold events received while it is detached.
+ *
+ * Touch events are kept as copies, since the framework recycles the originals
+ * once they have been dispatched. Scroll and mouse events are kept as the few
+ * values the controller needs from them. When the ring is full, a scroll event
+ * is merged into a scroll event at the tail of the ring, and a hover move
+ * replaces a hover move at the tail; any other event drops the oldest entry.
+ */
+/* package */ final class InputEventQueue {
+  private static final String LOGTAG = "InputEventQueue";
+
+  /* package */ static final int EVENT_SOURCE_SCROLL = 0;
+  /* package */ static final int EVENT_SOURCE_MOTION = 1;
+  /* package */ static final int EVENT_SOURCE_MOUSE = 2;
+
+  private final int mCapacity;
+  private final int[] mSource;
+  private final MotionEvent[] mEvent;
+  private final int[] mAction;
+  private final long[] mTime;
+  private final int[] mMetaState;
+  private final float[] mX;
+  private final float[] mY;
+  private final float[] mHScroll;
+  private final float[] mVScroll;
+  private final int[] mButtons;
+  private int mHead;
+  private int mSize;
+  private int mDropped;
+
+  /* package */ InputEventQueue(final int capacity) {
+    mCapacity = capacity;
+    mSource = new int[capacity];
+    mEvent = new MotionEvent[capacity];
+    mAction = new int[capacity];
+    mTime = new long[capacity];
+    mMetaState = new int[capacity];
+    mX = new float[capacity];
+    mY = new float[capacity];
+    mHScroll = new float[capacity];
+    mVScroll = new float[capacity];
+    mButtons = new int[capacity];
+  }
+
+  public int size() {
+    return mSize;
+  }
+
+  private int slot(final int index) {
+    return (mHead + index) % mCapacity;
+  }
+
+  private int tail() {
+    return mSize == 0 ? -1 : slot(mSize - 1);
+  }
+
+  private int append(final int source) {
+    if (mSize == mCapacity) {
+      if (mDropped++ == 0) {
+        Log.w(LOGTAG, "Event queue full, dropping oldest events");
+      }
+      if (mEvent[mHead] != null) {
+        mEvent[mHead].recycle();
+        mEvent[mHead] = null;
+      }
+      mHead = slot(1);
+      mSize--;
+    }
+
+    final int slot = slot(mSize++);
+    mSource[slot] = source;
+    return slot;
+  }
+
+  public void addMotion(final MotionEvent event) {
+    final int slot = append(EVENT_SOURCE_MOTION);
+    mEvent[slot] = MotionEvent.obtain(event);
+  }
+
+  public void addScroll(final long time, final int metaState, final float x, final float y,
+                        final float hScroll, final float vScroll) {
+    final int tail = tail();
+    if (mSize == mCapacity && mSource[tail] == EVENT_SOURCE_SCROLL) {
+      mHScroll[tail] += hScroll;
+      mVScroll[tail] += vScroll;
+      mTime[tail] = time;
+      mMetaState[tail] = metaState;
+      mX[tail] = x;
+      mY[tail] = y;
+      return;
+    }
+
+    final int slot = append(EVENT_SOURCE_SCROLL);
+    mTime[slot] = time;
+    mMetaState[slot] = metaState;
+    mX[slot] = x;
+    mY[slot] = y;
+    mHScroll[slot] = hScroll;
+    mVScroll[slot] = vScroll;
+  }
+
+  public void addMouse(final int action, final long time, final int metaState,
+                       final float x, final float y, final int buttons) {
+    final int tail = tail();
+    final int slot;
+    if (mSize == mCapacity && action == MotionEvent.ACTION_HOVER_MOVE &&
+        mSource[tail] == EVENT_SOURCE_MOUSE && mAction[tail] == MotionEvent.ACTION_HOVER_MOVE) {
+      slot = tail;
+    } else {
+      slot = append(EVENT_SOURCE_MOUSE);
+    }
+
+    mAction[slot] = action;
+    mTime[slot] = time;
+    mMetaState[slot] = metaState;
+    mX[slot] = x;
+    mY[slot] = y;
+    mButtons[slot] = buttons;
+  }
+
+  // Accessors for the event at the given position, counted from the oldest.
+
+  public int getSource(final int index) {
+    return mSource[slot(index)];
+  }
+
+  public MotionEvent getEvent(final int index) {
+    return mEvent[slot(index)];
+  }
+
+  public int getAction(final int index) {
+    return mAction[slot(index)];
+  }
+
+  public long getTime(final int index) {
+    return mTime[slot(index)];
+  }
+
+  public int getMetaState(final int index) {
+    return mMetaState[slot(index)];
+  }
+
+  public float getX(final int index) {
+    return mX[slot(index)];
+  }
+
+  public float getY(final int index) {
+    return mY[slot(index)];
+  }
+
+  public float getHScroll(final int index) {
+    return mHScroll[slot(index)];
+  }
+
+  public float getVScroll(final int index) {
+    return mVScroll[slot(index)];
+  }
+
+  public int getButtons(final int index) {
+    return mButtons[slot(index)];
+  }
+
+  public void clear() {
+    for (int i = 0; i < mSize; i++) {
+      final int slot = slot(i);
+      if (mEvent[slot] != null) {
+        mEvent[slot].recycle();
+        mEvent[slot] = null;
+      }
+    }
+    mHead = 0;
+    mSize = 0;
+    mDropped = 0;
+  }
+}
@@ -0,0 +1,156 @@
+package org.mozilla.gecko.gfx;
+
+/**
+ * Resamples the position of a pointer to the time of an upcoming frame, in the
+ * same way the platform resamples input for views: positions are interpolated
+ * between the two most recent samples, or extrapolated a short way past the
+ * newest one when input lags behind the frame.
+ *
+ * Extrapolated positions are predictions, so the resampler also keeps track of
+ * how far they turned out to be from the real pointer path once later samples
+ * arrive.
+ */
+/* package */ final class InputResampler {
+  // Resample to slightly before the frame time, so that there usually is a
+  // real sample on either side to interpolate between.
+  private static final long RESAMPLE_LATENCY = 5; // ms
+  // Samples closer or further apart than this are unreliable to extrapolate from.
+  private static final long RESAMPLE_MIN_DELTA = 2; // ms
+  private static final long RESAMPLE_MAX_DELTA = 20; // ms
+  // Never predict further than this past the newest sample.
+  private static final long RESAMPLE_MAX_PREDICTION = 8; // ms
+
+  private int mSampleCount;
+  private long mTime0;
+  private float mX0;
+  private float mY0;
+  private long mTime1;
+  private float mX1;
+  private float mY1;
+
+  private float mX;
+  private float mY;
+
+  private boolean mPredicted;
+  private double mPredictedTime;
+  private float mPredictedX;
+  private float mPredictedY;
+  private double mErrorSum;
+  private int mErrorCount;
+  private float mErrorMax;
+
+  public void reset() {
+    mSampleCount = 0;
+    mPredicted = false;
+  }
+
+  public boolean hasSamples() {
+    return mSampleCount > 0;
+  }
+
+  public void addSample(final long time, final float x, final float y) {
+    if (mSampleCount > 0 && time <= mTime1) {
+      // Keep the newest position for samples that share a timestamp.
+      mX1 = x;
+      mY1 = y;
+      return;
+    }
+
+    if (mPredicted && time >= mPredictedTime) {
+      // Now that the pointer has moved past the predicted time, measure
+      // how far the prediction was from the real path at that time.
+      final float alpha = (float)((mPredictedTime - mTime1) / (time - mTime1));
+      final float actualX = mX1 + (x - mX1) * alpha;
+      final float actualY = mY1 + (y - mY1) * alpha;
+      final float error = (float)Math.hypot(actualX - mPredictedX, actualY - mPredictedY);
+      mErrorSum += error;
+      mErrorCount++;
+      mErrorMax = Math.max(mErrorMax, error);
+      mPredicted = false;
+    }
+
+    mTime0 = mTime1;
+    mX0 = mX1;
+    mY0 = mY1;
+    mTime1 = time;
+    mX1 = x;
+    mY1 = y;
+    if (mSampleCount < 2) {
+      mSampleCount++;
+    }
+  }
+
+  /**
+   * Compute the pointer position for a frame. The result is available from
+   * {@link #getX()} and {@link #getY()}.
+   *
+   * @param frameTime Frame time in milliseconds, on the same clock as the samples.
+   */
+  public void resample(final double frameTime) {
+    mX = mX1;
+    mY = mY1;
+
+    if (mSampleCount < 2) {
+      return;
+    }
+
+    final long delta = mTime1 - mTime0;
+    final double sampleTime = frameTime - RESAMPLE_LATENCY;
+    final double target;
+
+    if (sampleTime <= mTime1) {
+      if (sampleTime <= mTime0) {
+        return;
+      }
+      target = sampleTime;
+    } else {
+      if (delta < RESAMPLE_MIN_DELTA || delta > RESAMPLE_MAX_DELTA) {
+        return;
+      }
+      target = Math.min(sampleTime, mTime1 + Math.min(delta / 2.0, RESAMPLE_MAX_PREDICTION));
+    }
+
+    final float alpha = (float)((target - mTime0) / delta);
+    mX = mX0 + (mX1 - mX0) * alpha;
+    mY = mY0 + (mY1 - mY0) * alpha;
+
+    if (target > mTime1) {
+      mPredicted = true;
+      mPredictedTime = target;
+      mPredictedX = mX;
+      mPredictedY = mY;
+    }
+  }
+
+  public float getX() {
+    return mX;
+  }
+
+  public float getY() {
+    return mY;
+  }
+
+  /**
+   * Get the mean distance between predicted positions and the real pointer path.
+   *
+   * @return Mean prediction error in pixels.
+   */
+  public float getMeanError() {
+    return mErrorCount == 0 ? 0 : (float)(mErrorSum / mErrorCount);
+  }
+
+  /**
+   * Get the largest distance between a predicted position and the real pointer path.
+   *
+   * @return Maximum prediction error in pixels.
+   */
+  public float getMaxError() {
+    return mErrorMax;
+  }
+
+  public void resetError() {
+    mErrorSum = 0;
+    mErrorCount = 0;
+    mErrorMax = 0;
+  }
+}
@@ -0,0 +1,145 @@
+package org.mozilla.gecko.gfx;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * Writes the input seen by {@link PanZoomController} to a compact binary trace
+ * that {@link InputTraceReplayer} can feed back through a controller.
+ *
+ * A trace starts with {@link #MAGIC} and {@link #VERSION}, followed by one
+ * record per event. Each record starts with its type byte:
+ * <ul>
+ * <li>{@link #RECORD_TOUCH}: time, action, action index, meta state and pointer
+ * count, then for each pointer its id, x, y, orientation, pressure, tool major
+ * and tool minor.</li>
+ * <li>{@link #RECORD_SCROLL}: time, meta state, x, y, horizontal and vertical
+ * scroll amounts.</li>
+ * <li>{@link #RECORD_MOUSE}: time, action, meta state, x, y and button state.</li>
+ * <li>{@link #RECORD_TOUCH_HISTORY}: time and pointer count, then for each
+ * pointer its id, x, y and pressure. A historical sample batched into the touch
+ * event that follows it, so it is delivered at the time of that event.</li>
+ * </ul>
+ * Times are longs in milliseconds, coordinates and amounts are floats, and
+ * everything else is an int.
+ *
+ * Writing never throws; the first failure stops recording and is reported by
+ * {@link #finish()}.
+ */
+/* package */ final class InputTraceRecorder {
+  /* package */ static final int MAGIC = 0x505a4354; // "PZCT"
+  /* package */ static final int VERSION = 1;
+
+  /* package */ static final byte RECORD_TOUCH = 1;
+  /* package */ static final byte RECORD_SCROLL = 2;
+  /* package */ static final byte RECORD_MOUSE = 3;
+  /* package */ static final byte RECORD_TOUCH_HISTORY = 4;
+
+  private final DataOutputStream mOut;
+  private IOException mError;
+
+  /* package */ InputTraceRecorder(final OutputStream out) throws IOException {
+    mOut = new DataOutputStream(new BufferedOutputStream(out));
+    mOut.writeInt(MAGIC);
+    mOut.writeInt(VERSION);
+  }
+
+  public void recordTouch(final int action, final int actionIndex, final long time,
+                          final int metaState, final int count, final int[] pointerId,
+                          final float[] x, final float[] y, final float[] orientation,
+                          final float[] pressure, final float[] toolMajor,
+                          final float[] toolMinor) {
+    if (mError != null) {
+      return;
+    }
+    try {
+      mOut.writeByte(RECORD_TOUCH);
+      mOut.writeLong(time);
+      mOut.writeInt(action);
+      mOut.writeInt(actionIndex);
+      mOut.writeInt(metaState);
+      mOut.writeInt(count);
+      for (int i = 0; i < count; i++) {
+        mOut.writeInt(pointerId[i]);
+        mOut.writeFloat(x[i]);
+        mOut.writeFloat(y[i]);
+        mOut.writeFloat(orientation[i]);
+        mOut.writeFloat(pressure[i]);
+        mOut.writeFloat(toolMajor[i]);
+        mOut.writeFloat(toolMinor[i]);
+      }
+    } catch (final IOException e) {
+      mError = e;
+    }
+  }
+
+  public void recordTouchHistory(final long time, final int count, final int[] pointerId,
+                                 final float[] x, final float[] y, final float[] pressure) {
+    if (mError != null) {
+      return;
+    }
+    try {
+      mOut.writeByte(RECORD_TOUCH_HISTORY);
+      mOut.writeLong(time);
+      mOut.writeInt(count);
+      for (int i = 0; i < count; i++) {
+        mOut.writeInt(pointerId[i]);
+        mOut.writeFloat(x[i]);
+        mOut.writeFloat(y[i]);
+        mOut.writeFloat(pressure[i]);
+      }
+    } catch (final IOException e) {
+      mError = e;
+    }
+  }
+
+  public void recordScroll(final long time, final int metaState, final float x, final float y,
+                           final float hScroll, final float vScroll) {
+    if (mError != null) {
+      return;
+    }
+    try {
+      mOut.writeByte(RECORD_SCROLL);
+      mOut.writeLong(time);
+      mOut.writeInt(metaState);
+      mOut.writeFloat(x);
+      mOut.writeFloat(y);
+      mOut.writeFloat(hScroll);
+      mOut.writeFloat(vScroll);
+    } catch (final IOException e) {
+      mError = e;
+    }
+  }
+
+  public void recordMouse(final int action, final long time, final int metaState,
+                          final float x, final float y, final int buttons) {
+    if (mError != null) {
+      return;
+    }
+    try {
+      mOut.writeByte(RECORD_MOUSE);
+      mOut.writeLong(time);
+      mOut.writeInt(action);
+      mOut.writeInt(metaState);
+      mOut.writeFloat(x);
+      mOut.writeFloat(y);
+      mOut.writeInt(buttons);
+    } catch (final IOException e) {
+      mError = e;
+    }
+  }
+
+  /**
+   * Flush the trace. The underlying stream is not closed.
+   *
+   * @throws IOException If writing any part of the trace failed.
+   */
+  public void finish() throws IOException {
+    if (mError != null) {
+      throw mError;
+    }
+    mOut.flush();
+  }
+}
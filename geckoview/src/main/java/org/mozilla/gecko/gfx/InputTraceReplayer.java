@@ -0,0 +1,331 @@
+package org.mozilla.gecko.gfx;
+
+import android.os.Build;
+import android.os.Debug;
+import android.os.SystemClock;
+import android.support.annotation.NonNull;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.reflect.Method;
+
+/**
+ * Feeds a trace recorded with {@link PanZoomController#startRecording} back
+ * through a {@link PanZoomController}, either at the original pace or as fast
+ * as possible, and reports how fast and how allocation-heavy the dispatch was,
+ * and how far resampled pan positions were off.
+ *
+ * The replayer drives the controller's frames itself from the trace timeline,
+ * at 60 frames per second, so replays do not depend on the display and give the
+ * same engine calls every time. The controller posts no frame callbacks or
+ * timers of its own while replaying, and after the last event the replayer runs
+ * frames until any fling or scroll gesture has come to rest. To measure the
+ * input path alone, replay into the controller of a session that has no engine
+ * attached.
+ *
+ * Replays must run on the UI thread.
+ */
+public final class InputTraceReplayer {
+  private static final long FRAME_INTERVAL = 1000000000L / 60; // ns
+  // Bytes of history records that are read ahead to find the touch event
+  // that delivers them.
+  private static final int HISTORY_READ_AHEAD = 64 * 1024;
+
+  /**
+   * Statistics for one replay.
+   */
+  public static final class Result {
+    /** Number of events dispatched, counting each historical touch sample. */
+    public final int events;
+    /** Number of frames run. */
+    public final int frames;
+    /** Wall-clock duration of the replay, in nanoseconds. */
+    public final long durationNanos;
+    /**
+     * Bytes allocated during the replay, or -1 if the runtime does not report
+     * them. Runtimes that count allocations per thread, like desktop JVMs,
+     * report the replaying thread alone. Otherwise, on Android 6.0 and later,
+     * other threads allocating at the same time are counted too.
+     */
+    public final long allocatedBytes;
+    /**
+     * Mean distance, in pixels, between the pan positions the controller
+     * extrapolated and the positions the trace later showed the pointer at.
+     * Zero if resampling is disabled or nothing was extrapolated.
+     */
+    public final float resamplingMeanError;
+    /** Largest such distance, in pixels. */
+    public final float resamplingMaxError;
+
+    /* package */ Result(final int events, final int frames, final long durationNanos,
+                         final long allocatedBytes, final float resamplingMeanError,
+                         final float resamplingMaxError) {
+      this.events = events;
+      this.frames = frames;
+      this.durationNanos = durationNanos;
+      this.allocatedBytes = allocatedBytes;
+      this.resamplingMeanError = resamplingMeanError;
+      this.resamplingMaxError = resamplingMaxError;
+    }
+
+    public double getEventsPerSecond() {
+      return durationNanos == 0 ? 0 : events * 1e9 / durationNanos;
+    }
+  }
+
+  private final PanZoomController mController;
+
+  private int[] mPointerId = new int[0];
+  private float[] mX = new float[0];
+  private float[] mY = new float[0];
+  private float[] mOrientation = new float[0];
+  private float[] mPressure = new float[0];
+  private float[] mToolMajor = new float[0];
+  private float[] mToolMinor = new float[0];
+
+  public InputTraceReplayer(@NonNull final PanZoomController controller) {
+    mController = controller;
+  }
+
+  private void ensureCapacity(final int count) {
+    if (count <= mPointerId.length) {
+      return;
+    }
+    mPointerId = new int[count];
+    mX = new float[count];
+    mY = new float[count];
+    mOrientation = new float[count];
+    mPressure = new float[count];
+    mToolMajor = new float[count];
+    mToolMinor = new float[count];
+  }
+
+  /**
+   * Replay a trace.
+   *
+   * @param trace Stream containing the trace. It is read to the end but not closed.
+   * @param realTime True to replay at the pace the trace was recorded at, false to
+   *                 replay as fast as possible.
+   * @return Replay statistics.
+   * @throws IOException If the trace cannot be read or is malformed.
+   */
+  public @NonNull Result replay(@NonNull final InputStream trace, final boolean realTime)
+          throws IOException {
+    final DataInputStream in = new DataInputStream(new BufferedInputStream(trace));
+    if (in.readInt() != InputTraceRecorder.MAGIC) {
+      throw new IOException("Not an input trace");
+    }
+    if (in.readInt() != InputTraceRecorder.VERSION) {
+      throw new IOException("Unsupported input trace version");
+    }
+
+    // Trace times are rebased onto the current uptime, so that they compare
+    // sensibly with timers the controller arms while replaying.
+    final long replayStart = SystemClock.uptimeMillis();
+    long timeOffset = 0;
+    long nextFrame = 0;
+    // Time the pending historical samples are delivered at, or -1 if none are.
+    long historyDelivery = -1;
+    int events = 0;
+    int frames = 0;
+
+    mController.setManualFrames(true);
+    mController.resetResamplingError();
+    final long startBytes = getAllocatedBytes();
+    final long startNanos = System.nanoTime();
+
+    try {
+      for (;;) {
+        final int type = in.read();
+        if (type < 0) {
+          break;
+        }
+
+        final long time = in.readLong();
+        if (events == 0) {
+          timeOffset = replayStart - time;
+          nextFrame = replayStart * 1000000L + FRAME_INTERVAL;
+        }
+        final long eventTime = time + timeOffset;
+
+        // Historical samples arrived together with the touch event that
+        // follows them, so only frames before that event run before them.
+        final long deliveryTime;
+        if (type == InputTraceRecorder.RECORD_TOUCH_HISTORY) {
+          if (historyDelivery < 0) {
+            historyDelivery = peekHistoryDelivery(in, time) + timeOffset;
+          }
+          deliveryTime = historyDelivery;
+        } else {
+          historyDelivery = -1;
+          deliveryTime = eventTime;
+        }
+
+        // Run the frames that would have started before this event.
+        while (nextFrame <= deliveryTime * 1000000L) {
+          runFrame(nextFrame);
+          nextFrame += FRAME_INTERVAL;
+          frames++;
+        }
+
+        if (realTime) {
+          final long delay = deliveryTime - SystemClock.uptimeMillis();
+          if (delay > 0) {
+            SystemClock.sleep(delay);
+          }
+        }
+
+        switch (type) {
+          case InputTraceRecorder.RECORD_TOUCH_HISTORY:
+            readTouchHistory(in, eventTime);
+            break;
+          case InputTraceRecorder.RECORD_TOUCH:
+            readTouch(in, eventTime);
+            break;
+          case InputTraceRecorder.RECORD_SCROLL:
+            mController.handleScrollEvent(eventTime, in.readInt(), in.readFloat(),
+                    in.readFloat(), in.readFloat(), in.readFloat());
+            break;
+          case InputTraceRecorder.RECORD_MOUSE:
+            mController.handleMouseEvent(in.readInt(), eventTime, in.readInt(),
+                    in.readFloat(), in.readFloat(), in.readInt());
+            break;
+          default:
+            throw new IOException("Unknown input trace record " + type);
+        }
+        events++;
+      }
+
+      // Let pending scrolls, flings and idle timeouts run their course.
+      while (mController.isSettling()) {
+        runFrame(nextFrame);
+        nextFrame += FRAME_INTERVAL;
+        frames++;
+      }
+    } catch (final EOFException e) {
+      throw new IOException("Truncated input trace", e);
+    } finally {
+      // Hands a touch gesture the trace left in progress back to the display.
+      mController.setManualFrames(false);
+    }
+
+    final long durationNanos = System.nanoTime() - startNanos;
+    final long endBytes = getAllocatedBytes();
+    return new Result(events, frames, durationNanos,
+                      startBytes < 0 || endBytes < 0 ? -1 : endBytes - startBytes,
+                      mController.getResamplingMeanError(),
+                      mController.getResamplingMaxError());
+  }
+
+  // Reads ahead from a history record whose time has just been read, and
+  // returns the time of the touch event that follows it. The stream is left
+  // where it was.
+  private static long peekHistoryDelivery(final DataInputStream in, final long time)
+          throws IOException {
+    in.mark(HISTORY_READ_AHEAD);
+    try {
+      for (;;) {
+        in.skipBytes(in.readInt() * 16); // Id, x, y and pressure per pointer.
+        final int type = in.read();
+        if (type != InputTraceRecorder.RECORD_TOUCH_HISTORY) {
+          // A trace that ends with history delivers it at its own time.
+          return type < 0 ? time : in.readLong();
+        }
+        in.readLong();
+      }
+    } catch (final EOFException e) {
+      return time;
+    } finally {
+      in.reset();
+    }
+  }
+
+  private static Object sThreadBean;
+  private static Method sThreadAllocatedBytes;
+
+  // Bytes allocated so far by the current thread, or -1 if the runtime does
+  // not count them. Only desktop JVMs do, and Android has no java.lang.management,
+  // so the bean is looked up by reflection, once.
+  private static long getThreadAllocatedBytes() {
+    try {
+      if (sThreadAllocatedBytes == null) {
+        final Object bean = Class.forName("java.lang.management.ManagementFactory")
+                .getMethod("getThreadMXBean").invoke(null);
+        final Class<?> beanClass = Class.forName("com.sun.management.ThreadMXBean");
+        if (!beanClass.isInstance(bean)) {
+          return -1;
+        }
+        sThreadAllocatedBytes = beanClass.getMethod("getThreadAllocatedBytes", long.class);
+        sThreadBean = bean;
+      }
+      return (Long) sThreadAllocatedBytes.invoke(sThreadBean, Thread.currentThread().getId());
+    } catch (final ReflectiveOperationException | RuntimeException | LinkageError e) {
+      return -1;
+    }
+  }
+
+  // Bytes allocated so far by the current thread where the runtime counts
+  // them, or else by the whole process; -1 if unknown.
+  private static long getAllocatedBytes() {
+    final long threadBytes = getThreadAllocatedBytes();
+    if (threadBytes >= 0) {
+      return threadBytes;
+    }
+
+    if (Build.VERSION.SDK_INT < 23) {
+      return -1;
+    }
+    final String stat = Debug.getRuntimeStat("art.gc.bytes-allocated");
+    if (stat == null) {
+      return -1;
+    }
+    try {
+      return Long.parseLong(stat);
+    } catch (final NumberFormatException e) {
+      return -1;
+    }
+  }
+
+  private void runFrame(final long frameTimeNanos) {
+    mController.onFrame(frameTimeNanos);
+    mController.checkScrollIdle(frameTimeNanos / 1000000L);
+  }
+
+  private void readTouchHistory(final DataInputStream in, final long time) throws IOException {
+    final int count = in.readInt();
+
+    ensureCapacity(count);
+    for (int i = 0; i < count; i++) {
+      mPointerId[i] = in.readInt();
+      mX[i] = in.readFloat();
+      mY[i] = in.readFloat();
+      mPressure[i] = in.readFloat();
+    }
+
+    mController.handleTouchHistory(time, count, mPointerId, mX, mY, mPressure);
+  }
+
+  private void readTouch(final DataInputStream in, final long time) throws IOException {
+    final int action = in.readInt();
+    final int actionIndex = in.readInt();
+    final int metaState = in.readInt();
+    final int count = in.readInt();
+
+    ensureCapacity(count);
+    for (int i = 0; i < count; i++) {
+      mPointerId[i] = in.readInt();
+      mX[i] = in.readFloat();
+      mY[i] = in.readFloat();
+      mOrientation[i] = in.readFloat();
+      mPressure[i] = in.readFloat();
+      mToolMajor[i] = in.readFloat();
+      mToolMinor[i] = in.readFloat();
+    }
+
+    mController.handleMotionEvent(action, actionIndex, time, metaState, count, mPointerId,
+            mX, mY, mOrientation, mPressure, mToolMajor, mToolMinor);
+  }
+}
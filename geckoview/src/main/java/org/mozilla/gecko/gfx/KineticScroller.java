@@ -0,0 +1,200 @@
+package org.mozilla.gecko.gfx;
+
+/**
+ * Tracks the velocity of a panning pointer and animates the fling that follows
+ * its release. Positions are in pixels and velocities in pixels per second.
+ *
+ * The fling decelerates exponentially: with friction k and release velocity v0,
+ * the distance travelled after t seconds is v0 / k * (1 - e^(-k * t)).
+ */
+/* package */ final class KineticScroller {
+  private static final int HISTORY_SIZE = 20;
+  // Only samples this recent contribute to the release velocity.
+  private static final long VELOCITY_WINDOW = 100; // ms
+  // A pointer that rested this long before being released does not fling.
+  private static final long ASSUME_STOPPED = 40; // ms
+
+  /* package */ static final float DEFAULT_FRICTION = 4.0f;
+
+  private final long[] mSampleTime = new long[HISTORY_SIZE];
+  private final float[] mSampleX = new float[HISTORY_SIZE];
+  private final float[] mSampleY = new float[HISTORY_SIZE];
+  private int mSampleHead;
+  private int mSampleCount;
+
+  private float mVelocityX;
+  private float mVelocityY;
+
+  private float mFriction = DEFAULT_FRICTION;
+  private boolean mFlinging;
+  private long mFlingStartNanos;
+  private float mFlingVelocityX;
+  private float mFlingVelocityY;
+  private double mFlingDistanceX;
+  private double mFlingDistanceY;
+  private float mMinVelocity;
+  private float mStepX;
+  private float mStepY;
+
+  public void setFriction(final float friction) {
+    if (friction <= 0) {
+      throw new IllegalArgumentException("Friction must be positive");
+    }
+    mFriction = friction;
+  }
+
+  public float getFriction() {
+    return mFriction;
+  }
+
+  public void clearSamples() {
+    mSampleHead = 0;
+    mSampleCount = 0;
+    mVelocityX = 0;
+    mVelocityY = 0;
+  }
+
+  public void addSample(final long time, final float x, final float y) {
+    mSampleTime[mSampleHead] = time;
+    mSampleX[mSampleHead] = x;
+    mSampleY[mSampleHead] = y;
+    mSampleHead = (mSampleHead + 1) % HISTORY_SIZE;
+    if (mSampleCount < HISTORY_SIZE) {
+      mSampleCount++;
+    }
+  }
+
+  /**
+   * Compute the release velocity from the recorded samples, using a least-squares
+   * fit of position against time over the most recent samples.
+   *
+   * @param releaseTime Time of the release, in milliseconds. The release position
+   *                    may already have been added as a sample.
+   * @param maxVelocity Maximum magnitude of each velocity component.
+   */
+  public void computeVelocity(final long releaseTime, final float maxVelocity) {
+    mVelocityX = 0;
+    mVelocityY = 0;
+
+    if (mSampleCount < 2) {
+      return;
+    }
+
+    final int newest = (mSampleHead + HISTORY_SIZE - 1) % HISTORY_SIZE;
+    final long newestTime = mSampleTime[newest];
+    // The release position is usually the newest sample, so the pointer rested
+    // if the last sample before the release is too old.
+    final int previous = newestTime < releaseTime
+            ? newest : (newest + HISTORY_SIZE - 1) % HISTORY_SIZE;
+    if (releaseTime - mSampleTime[previous] > ASSUME_STOPPED) {
+      return;
+    }
+
+    int n = 0;
+    double sumT = 0, sumX = 0, sumY = 0, sumTT = 0, sumTX = 0, sumTY = 0;
+    for (int i = 0; i < mSampleCount; i++) {
+      final int index = (newest + HISTORY_SIZE - i) % HISTORY_SIZE;
+      final long age = newestTime - mSampleTime[index];
+      if (age > VELOCITY_WINDOW) {
+        break;
+      }
+      final double t = -age;
+      sumT += t;
+      sumX += mSampleX[index];
+      sumY += mSampleY[index];
+      sumTT += t * t;
+      sumTX += t * mSampleX[index];
+      sumTY += t * mSampleY[index];
+      n++;
+    }
+
+    final double denominator = n * sumTT - sumT * sumT;
+    if (n < 2 || denominator == 0) {
+      return;
+    }
+
+    // Slopes are in pixels per millisecond.
+    mVelocityX = clamp((float)((n * sumTX - sumT * sumX) / denominator * 1000), maxVelocity);
+    mVelocityY = clamp((float)((n * sumTY - sumT * sumY) / denominator * 1000), maxVelocity);
+  }
+
+  private static float clamp(final float value, final float max) {
+    return Math.max(-max, Math.min(max, value));
+  }
+
+  public float getVelocityX() {
+    return mVelocityX;
+  }
+
+  public float getVelocityY() {
+    return mVelocityY;
+  }
+
+  /**
+   * Start a fling with the last computed velocity.
+   *
+   * @param startNanos Time the fling starts, on the same clock as frame times.
+   * @param minVelocity Velocity below which the fling does not start, or stops.
+   * @return True if the fling was started.
+   */
+  public boolean startFling(final long startNanos, final float minVelocity) {
+    if (Math.hypot(mVelocityX, mVelocityY) < minVelocity) {
+      return false;
+    }
+
+    mFlinging = true;
+    mFlingStartNanos = startNanos;
+    mFlingVelocityX = mVelocityX;
+    mFlingVelocityY = mVelocityY;
+    mFlingDistanceX = 0;
+    mFlingDistanceY = 0;
+    mMinVelocity = minVelocity;
+    return true;
+  }
+
+  public boolean isFlinging() {
+    return mFlinging;
+  }
+
+  public void stopFling() {
+    mFlinging = false;
+    mStepX = 0;
+    mStepY = 0;
+  }
+
+  /**
+   * Advance the fling to the given frame time. The distance covered since the
+   * previous step is available from {@link #getStepX()} and {@link #getStepY()}.
+   *
+   * @param frameTimeNanos Frame time, on the same clock as the start time.
+   * @return False if the fling has come to rest.
+   */
+  public boolean stepFling(final long frameTimeNanos) {
+    if (!mFlinging) {
+      return false;
+    }
+
+    final double t = Math.max(0, frameTimeNanos - mFlingStartNanos) / 1e9;
+    final double decay = Math.exp(-mFriction * t);
+    final double distanceX = mFlingVelocityX / mFriction * (1 - decay);
+    final double distanceY = mFlingVelocityY / mFriction * (1 - decay);
+
+    mStepX = (float)(distanceX - mFlingDistanceX);
+    mStepY = (float)(distanceY - mFlingDistanceY);
+    mFlingDistanceX = distanceX;
+    mFlingDistanceY = distanceY;
+
+    if (Math.hypot(mFlingVelocityX, mFlingVelocityY) * decay < mMinVelocity) {
+      mFlinging = false;
+    }
+    return true;
+  }
+
+  public float getStepX() {
+    return mStepX;
+  }
+
+  public float getStepY() {
+    return mStepY;
+  }
+}
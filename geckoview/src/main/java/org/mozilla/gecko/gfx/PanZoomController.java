@@ -2,24 +2,32 @@ package org.mozilla.gecko.gfx;
 
 import android.view.MotionEvent;
 import android.util.Log;
+import android.util.SparseIntArray;
+import android.content.res.Resources;
 import android.graphics.Rect;
+import android.os.Handler;
+import android.os.Looper;
 import android.os.SystemClock;
-import android.util.Pair;
+import android.support.annotation.NonNull;
+import android.view.Choreographer;
 import android.view.MotionEvent;
 import android.view.InputDevice;
-import java.util.ArrayList;
+import android.view.ViewConfiguration;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Arrays;
 
 
 import org.mozilla.geckoview.GeckoSession;
+import org.mozilla.geckoview.InputLatency;
 
 public final class PanZoomController {
 
   private static final String LOGTAG = "PanZoomController";
   private final GeckoSession mSession;
+  private final InputDispatcher mDispatcher;
+  private final LatencyRecorder mLatency;
 
-  private static final int EVENT_SOURCE_SCROLL = 0;
-  private static final int EVENT_SOURCE_MOTION = 1;
-  private static final int EVENT_SOURCE_MOUSE = 2;
   private final Rect mTempRect = new Rect();
   private boolean mAttached;
   private float mPointerScrollFactor = 64.0f;
@@ -32,50 +40,611 @@ public final class PanZoomController {
     }
   }
 
+  /**
+   * Receives the latency of each stage of a controller's input path.
+   */
+  public interface LatencyRecorder {
+    /**
+     * Record a sample.
+     *
+     * @param stage One of the {@link InputLatency} STAGE_* constants.
+     * @param nanos Latency in nanoseconds.
+     */
+    void record(@InputLatency.Stage int stage, long nanos);
+  }
+
+  private static final LatencyRecorder NO_LATENCY_RECORDER = new LatencyRecorder() {
+    @Override
+    public void record(final int stage, final long nanos) {
+    }
+  };
+
+  /**
+   * Create a controller that does not record input latency. The controller
+   * returned by {@link GeckoSession#getPanZoomController()} records into the
+   * session's {@link GeckoSession#getInputLatency()}.
+   *
+   * @param session Session to send input to.
+   */
   public PanZoomController(GeckoSession session) {
+    this(session, NO_LATENCY_RECORDER);
+  }
+
+  /**
+   * Create a controller.
+   *
+   * @param session Session to send input to.
+   * @param latency Receiver of the latency of each input stage.
+   */
+  public PanZoomController(@NonNull GeckoSession session, @NonNull LatencyRecorder latency) {
     mSession = session;
-    enableEventQueue();
+    mLatency = latency;
+    mDispatcher = new InputDispatcher(session, latency);
+
+    final float density = Resources.getSystem().getDisplayMetrics().density;
+    mTouchSlop = TOUCH_SLOP * density;
+    mMinFlingVelocity = MIN_FLING_VELOCITY * density;
+    mMaxFlingVelocity = MAX_FLING_VELOCITY * density;
+
     setAttached(true); // FIXME
   }
 
-  private ArrayList<Pair<Integer, MotionEvent>> mQueuedEvents;
+  // Events received while detached. Flushing the queue on attach is bounded
+  // by its capacity; see InputEventQueue for how it handles overflow.
+  private static final int EVENT_QUEUE_CAPACITY = 64;
+  private final InputEventQueue mQueuedEvents = new InputEventQueue(EVENT_QUEUE_CAPACITY);
+
+  private InputTraceRecorder mRecorder;
+
+  // Receipt time of the event being handled, and of the first event behind each
+  // kind of pending output (0 if none), in System.nanoTime() units. They feed the
+  // session's queueing and coalescing latency histograms.
+  private long mEventReceived;
+  private long mPendingScrollSince;
+
+  private void receiveEvent(final long time) {
+    mEventReceived = System.nanoTime();
+    // Event times are uptimes, so the queueing time is measured against the
+    // uptime clock. Replayed event times only say when the replay fed them.
+    if (!mManualFrames) {
+      mLatency.record(InputLatency.STAGE_QUEUEING,
+              (SystemClock.uptimeMillis() - time) * 1000000L);
+    }
+  }
+
+  private void recordCoalescing(final long since) {
+    if (since != 0) {
+      mLatency.record(InputLatency.STAGE_COALESCING, System.nanoTime() - since);
+    }
+  }
 
-  private boolean handleMotionEvent(
-          int action, int actionIndex, long time, int metaState,
+  // Pointer data for the event being dispatched. These buffers are reused
+  // across events and only grow when more pointers are down than ever before,
+  // so that the steady-state touch path does not allocate.
+  private static final int INITIAL_POINTER_CAPACITY = 4;
+  private final MotionEvent.PointerCoords mCoords = new MotionEvent.PointerCoords();
+  private int[] mPointerId = new int[INITIAL_POINTER_CAPACITY];
+  private float[] mX = new float[INITIAL_POINTER_CAPACITY];
+  private float[] mY = new float[INITIAL_POINTER_CAPACITY];
+  private float[] mOrientation = new float[INITIAL_POINTER_CAPACITY];
+  private float[] mPressure = new float[INITIAL_POINTER_CAPACITY];
+  private float[] mToolMajor = new float[INITIAL_POINTER_CAPACITY];
+  private float[] mToolMinor = new float[INITIAL_POINTER_CAPACITY];
+
+  private void ensurePointerCapacity(final int count) {
+    if (count <= mPointerId.length) {
+      return;
+    }
+
+    int capacity = mPointerId.length;
+    while (capacity < count) {
+      capacity *= 2;
+    }
+
+    mPointerId = new int[capacity];
+    mX = new float[capacity];
+    mY = new float[capacity];
+    mOrientation = new float[capacity];
+    mPressure = new float[capacity];
+    mToolMajor = new float[capacity];
+    mToolMinor = new float[capacity];
+  }
+
+  // A historical sample batched into the touch event that follows. It feeds
+  // velocity tracking and resampling, but does not move the gesture along by
+  // itself.
+  /* package */ void handleTouchHistory(
+          long time, int count, int pointerId[], float x[], float y[], float pressure[]) {
+
+    if (mRecorder != null) {
+      mRecorder.recordTouchHistory(time, count, pointerId, x, y, pressure);
+    }
+
+    final int index = findPanPointer(count, pointerId);
+    if (index >= 0) {
+      addPanSample(time, x[index], y[index]);
+    }
+  }
+
+  /* package */ boolean handleMotionEvent(
+          int action, int actionIndex, long time, int metaState, int count,
           int pointerId[], float x[], float y[], float orientation[], float pressure[],
           float toolMajor[], float toolMinor[]) {
 
-    if (action == MotionEvent.ACTION_UP) {
-        mSession.click((int)x[0], (int)y[0]);
+    if (mRecorder != null) {
+      mRecorder.recordTouch(action, actionIndex, time, metaState, count, pointerId,
+              x, y, orientation, pressure, toolMajor, toolMinor);
+    }
+    receiveEvent(time);
+
+    switch (action) {
+      case MotionEvent.ACTION_DOWN:
+        // A touch that stops a fling only stops it; it is not a tap.
+        mTapPossible = mGestureState != GESTURE_STATE_FLINGING;
+        mTapDownTime = time;
+        // A new touch gesture ends any ongoing gesture or fling.
+        endPinch();
+        endScrollGesture();
+        mPanPointerId = pointerId[0];
+        mPanStartX = mPanLastX = x[0];
+        mPanStartY = mPanLastY = y[0];
+        mKinetic.clearSamples();
+        mResampler.reset();
+        addPanSample(time, x[0], y[0]);
+        break;
+
+      case MotionEvent.ACTION_MOVE:
+        // FIXME: ServoSurface has no zoom entry points yet, so a pinch only
+        // keeps its pointers from panning or tapping.
+        if (mGestureState != GESTURE_STATE_PINCHING) {
+          trackPan(time, count, pointerId, x, y, /* exact */ false);
+        }
+        break;
+
+      case MotionEvent.ACTION_POINTER_DOWN:
+        mTapPossible = false;
+        if (mGestureState != GESTURE_STATE_PINCHING) {
+          // A second finger turns the gesture into a pinch.
+          endScrollGesture();
+          mGestureState = GESTURE_STATE_PINCHING;
+          mPanPointerId = INVALID_POINTER_ID;
+        }
+        break;
+
+      case MotionEvent.ACTION_POINTER_UP:
+        if (mGestureState == GESTURE_STATE_PINCHING && count <= 2) {
+          // The remaining pointer does not pan until the next touch down.
+          endPinch();
+        }
+        // A second pointer always starts a pinch, so there is never a pan
+        // to hand over here.
+        break;
+
+      case MotionEvent.ACTION_UP:
+        if (mTapPossible && time - mTapDownTime <= mLongPressTimeout) {
+          // Nothing ruled the tap out, so dispatch it right away instead of
+          // waiting to see whether a double tap follows.
+          mTapPossible = false;
+          mDispatcher.click((int)x[0], (int)y[0]);
+        } else if (mGestureState == GESTURE_STATE_PANNING) {
+          // Finish the pan at the real release position, not a resampled one.
+          trackPan(time, count, pointerId, x, y, /* exact */ true);
+          mKinetic.computeVelocity(time, mMaxFlingVelocity);
+          // Event times and frame times are both based on the monotonic clock.
+          if (mKinetic.startFling(time * 1000000L, mMinFlingVelocity)) {
+            mGestureState = GESTURE_STATE_FLINGING;
+            requestFrame();
+          } else {
+            endScrollGesture();
+          }
+        } else {
+          endPinch();
+        }
+        break;
+
+      case MotionEvent.ACTION_CANCEL:
+        mTapPossible = false;
+        endPinch();
+        endScrollGesture();
+        break;
     }
 
     return true;
   }
 
-  private boolean mIsScrolling = false;
-  private boolean handleScrollEvent(
+  private static final int GESTURE_STATE_IDLE = 0;
+  // Scrolling from wheel, touchpad or controller scroll events.
+  private static final int GESTURE_STATE_SCROLLING = 1;
+  // Scrolling by dragging a touch pointer.
+  private static final int GESTURE_STATE_PANNING = 2;
+  // Kinetic scrolling after a pan was released.
+  private static final int GESTURE_STATE_FLINGING = 3;
+  // Two or more touch pointers down, as for a pinch.
+  private static final int GESTURE_STATE_PINCHING = 4;
+  private int mGestureState = GESTURE_STATE_IDLE;
+  // Whether scrollStart was sent for the current gesture.
+  private boolean mScrollStarted;
+
+  private static final int INVALID_POINTER_ID = -1;
+
+  private void endPinch() {
+    if (mGestureState != GESTURE_STATE_PINCHING) {
+      return;
+    }
+
+    mGestureState = GESTURE_STATE_IDLE;
+  }
+
+  private static final float TOUCH_SLOP = 8; // dp
+  private static final float MIN_FLING_VELOCITY = 50; // dp/s
+  private static final float MAX_FLING_VELOCITY = 8000; // dp/s
+  private final float mTouchSlop;
+  private final float mMinFlingVelocity;
+  private final float mMaxFlingVelocity;
+
+  // Each touch sequence starts out as both a possible tap and a possible pan.
+  // The tap is ruled out as soon as the pointer leaves the touch slop, a second
+  // pointer goes down, or the press turns into a long press; whatever is still
+  // possible when the last pointer goes up wins.
+  private boolean mTapPossible;
+  private long mTapDownTime;
+  private final long mLongPressTimeout = ViewConfiguration.getLongPressTimeout();
+
+  private final KineticScroller mKinetic = new KineticScroller();
+  private int mPanPointerId;
+  private float mPanStartX;
+  private float mPanStartY;
+  private float mPanLastX;
+  private float mPanLastY;
+
+  private boolean mResamplingEnabled;
+  private final InputResampler mResampler = new InputResampler();
+
+  private void addPanSample(final long time, final float x, final float y) {
+    mKinetic.addSample(time, x, y);
+    if (mResamplingEnabled) {
+      mResampler.addSample(time, x, y);
+    }
+  }
+
+  private int findPanPointer(final int count, final int[] pointerId) {
+    for (int i = 0; i < count; i++) {
+      if (pointerId[i] == mPanPointerId) {
+        return i;
+      }
+    }
+    return -1;
+  }
+
+  private void trackPan(final long time, final int count, final int[] pointerId,
+                        final float[] x, final float[] y, final boolean exact) {
+    final int index = findPanPointer(count, pointerId);
+    if (index < 0) {
+      return;
+    }
+
+    addPanSample(time, x[index], y[index]);
+
+    if (time - mTapDownTime > mLongPressTimeout) {
+      mTapPossible = false;
+    }
+
+    if (mGestureState != GESTURE_STATE_PANNING) {
+      if (Math.hypot(x[index] - mPanStartX, y[index] - mPanStartY) < mTouchSlop) {
+        return;
+      }
+      mGestureState = GESTURE_STATE_PANNING;
+      mTapPossible = false;
+    }
+
+    if (mResamplingEnabled && !exact) {
+      // The position is resampled to the frame time in onFrame().
+      mPendingScrollEvents++;
+      if (mPendingScrollSince == 0) {
+        mPendingScrollSince = mEventReceived;
+      }
+      requestFrame();
+      return;
+    }
+
+    mPendingScrollX += x[index] - mPanLastX;
+    mPendingScrollY += y[index] - mPanLastY;
+    mScrollAnchorX = x[index];
+    mScrollAnchorY = y[index];
+    mPendingScrollEvents++;
+    if (mPendingScrollSince == 0) {
+      mPendingScrollSince = mEventReceived;
+    }
+    mPanLastX = x[index];
+    mPanLastY = y[index];
+    requestFrame();
+  }
+
+  // A scroll gesture ends when no scroll input has arrived for this long.
+  private static final long SCROLL_IDLE_TIMEOUT = 150; // ms
+  private final Handler mHandler = new Handler(Looper.getMainLooper());
+  private long mScrollIdleDeadline;
+  private boolean mScrollIdleTimerPosted;
+
+  // Re-arming the timer only moves the deadline forward; the posted runnable
+  // notices a deadline that has moved and waits out the remainder, so scroll
+  // events do not cost a removeCallbacks/postDelayed pair each.
+  private final Runnable mScrollIdleTimer = new Runnable() {
+    @Override
+    public void run() {
+      onScrollIdleTimer(SystemClock.uptimeMillis());
+    }
+  };
+
+  // Runs the posted idle timer as if it fired at the specified uptime.
+  /* package */ void onScrollIdleTimer(final long now) {
+    mScrollIdleTimerPosted = false;
+    if (mGestureState != GESTURE_STATE_SCROLLING) {
+      return;
+    }
+    final long remaining = mScrollIdleDeadline - now;
+    if (remaining > 0) {
+      postScrollIdleTimer(remaining);
+      return;
+    }
+    endScrollGesture();
+  }
+
+  /* package */ boolean isScrollIdleTimerPosted() {
+    return mScrollIdleTimerPosted;
+  }
+
+  /* package */ void checkScrollIdle(final long now) {
+    if (mGestureState == GESTURE_STATE_SCROLLING && now >= mScrollIdleDeadline) {
+      endScrollGesture();
+    }
+  }
+
+  private void postScrollIdleTimer(final long delay) {
+    mScrollIdleTimerPosted = true;
+    mHandler.postDelayed(mScrollIdleTimer, delay);
+  }
+
+  private void rearmScrollIdleTimer(final long time) {
+    mScrollIdleDeadline = time + SCROLL_IDLE_TIMEOUT;
+    if (!mScrollIdleTimerPosted && !mManualFrames) {
+      postScrollIdleTimer(SCROLL_IDLE_TIMEOUT);
+    }
+  }
+
+  private void endScrollGesture() {
+    flushPendingScroll();
+
+    if (mScrollStarted) {
+      mDispatcher.scrollEnd(0, 0, (int)mScrollAnchorX, (int)mScrollAnchorY);
+    }
+
+    mGestureState = GESTURE_STATE_IDLE;
+    mScrollStarted = false;
+    mKinetic.stopFling();
+    mPendingScrollEvents = 0;
+    mPendingScrollSince = 0;
+    mPendingScrollX = 0;
+    mPendingScrollY = 0;
+    mScrollRemainderX = 0;
+    mScrollRemainderY = 0;
+
+    if (mScrollIdleTimerPosted) {
+      mScrollIdleTimerPosted = false;
+      mHandler.removeCallbacks(mScrollIdleTimer);
+    }
+  }
+
+  // Scroll deltas received since the last frame. They are summed up and sent
+  // to the session as a single call when the next frame starts, anchored at
+  // the most recent pointer position.
+  private double mPendingScrollX;
+  private double mPendingScrollY;
+  // Fractional pixels left over from previous scroll calls in the current
+  // gesture. The session only takes whole pixels, so the remainders are
+  // carried forward instead of being truncated away on every call.
+  private double mScrollRemainderX;
+  private double mScrollRemainderY;
+  private float mScrollAnchorX;
+  private float mScrollAnchorY;
+  private int mPendingScrollEvents;
+  private int mCoalescedScrollEvents;
+
+  /* package */ boolean handleScrollEvent(
           long time, int metaState,
           float x, float y,
           float hScroll, float vScroll) {
 
-    if (!mIsScrolling) {
-      mIsScrolling = true;
-      mSession.scrollStart((int)hScroll, (int)vScroll, (int)x, (int)y);
-    } else {
-      mSession.scroll((int)hScroll, (int)vScroll, (int)x, (int)y);
+    if (mRecorder != null) {
+      mRecorder.recordScroll(time, metaState, x, y, hScroll, vScroll);
+    }
+    receiveEvent(time);
+
+    if (mGestureState == GESTURE_STATE_PINCHING) {
+      // A scroll gesture cannot run alongside a pinch, and the pinch would
+      // end it without a scrollEnd, so the wheel is ignored until it is over.
+      return false;
+    }
+    if (mGestureState == GESTURE_STATE_FLINGING) {
+      endScrollGesture();
+    }
+    if (mGestureState == GESTURE_STATE_IDLE) {
+      mGestureState = GESTURE_STATE_SCROLLING;
+    }
+
+    mPendingScrollX += hScroll;
+    mPendingScrollY += vScroll;
+    mScrollAnchorX = x;
+    mScrollAnchorY = y;
+    mPendingScrollEvents++;
+    if (mPendingScrollSince == 0) {
+      mPendingScrollSince = mEventReceived;
     }
+    rearmScrollIdleTimer(time);
+    requestFrame();
     return true;
   }
 
-  private boolean handleMouseEvent(
+  private void flushPendingScroll() {
+    if (mPendingScrollEvents == 0 && mPendingScrollX == 0 && mPendingScrollY == 0) {
+      return;
+    }
+
+    final double totalX = mScrollRemainderX + mPendingScrollX;
+    final double totalY = mScrollRemainderY + mPendingScrollY;
+    final int deltaX = (int)totalX;
+    final int deltaY = (int)totalY;
+    final int x = (int)mScrollAnchorX;
+    final int y = (int)mScrollAnchorY;
+
+    mScrollRemainderX = totalX - deltaX;
+    mScrollRemainderY = totalY - deltaY;
+    mPendingScrollX = 0;
+    mPendingScrollY = 0;
+
+    if (deltaX == 0 && deltaY == 0) {
+      // Less than a pixel so far; keep accumulating.
+      return;
+    }
+
+    mCoalescedScrollEvents = mPendingScrollEvents;
+    mPendingScrollEvents = 0;
+
+    if (!mScrollStarted) {
+      mScrollStarted = true;
+      mDispatcher.scrollStart(deltaX, deltaY, x, y);
+    } else {
+      mDispatcher.scroll(deltaX, deltaY, x, y);
+    }
+    recordCoalescing(mPendingScrollSince);
+    mPendingScrollSince = 0;
+  }
+
+  private Choreographer mChoreographer;
+  private boolean mFrameRequested;
+  private final Choreographer.FrameCallback mFrameCallback = new Choreographer.FrameCallback() {
+    @Override
+    public void doFrame(final long frameTimeNanos) {
+      mFrameRequested = false;
+      onFrame(frameTimeNanos);
+    }
+  };
+
+  // While frames are run manually, as when replaying a trace, neither frame
+  // callbacks nor the scroll idle timer are posted; whoever runs the frames
+  // calls onFrame() and checkScrollIdle() instead.
+  private boolean mManualFrames;
+
+  /* package */ void setManualFrames(final boolean manual) {
+    if (manual == mManualFrames) {
+      return;
+    }
+    mManualFrames = manual;
+
+    if (manual) {
+      if (mFrameRequested) {
+        mFrameRequested = false;
+        mChoreographer.removeFrameCallback(mFrameCallback);
+      }
+      if (mScrollIdleTimerPosted) {
+        mScrollIdleTimerPosted = false;
+        mHandler.removeCallbacks(mScrollIdleTimer);
+      }
+      return;
+    }
+
+    if (needsFrame()) {
+      requestFrame();
+    }
+    if (mGestureState == GESTURE_STATE_SCROLLING) {
+      postScrollIdleTimer(Math.max(0, mScrollIdleDeadline - SystemClock.uptimeMillis()));
+    }
+  }
+
+  private void requestFrame() {
+    if (mFrameRequested || mManualFrames) {
+      return;
+    }
+    if (mChoreographer == null) {
+      mChoreographer = Choreographer.getInstance();
+    }
+    mFrameRequested = true;
+    mChoreographer.postFrameCallback(mFrameCallback);
+  }
+
+  /* package */ boolean needsFrame() {
+    return mGestureState != GESTURE_STATE_IDLE || mPendingScrollEvents != 0;
+  }
+
+  // Whether frames are still needed to finish what the input so far started,
+  // such as a fling or a scroll gesture waiting to go idle, without further
+  // input. A touch gesture that is still in progress does not settle.
+  /* package */ boolean isSettling() {
+    return mGestureState != GESTURE_STATE_PANNING &&
+           mGestureState != GESTURE_STATE_PINCHING && needsFrame();
+  }
+
+  /* package */ void onFrame(final long frameTimeNanos) {
+    if (mGestureState == GESTURE_STATE_FLINGING) {
+      if (mKinetic.stepFling(frameTimeNanos)) {
+        mPendingScrollX += mKinetic.getStepX();
+        mPendingScrollY += mKinetic.getStepY();
+        requestFrame();
+      } else {
+        endScrollGesture();
+      }
+    } else if (mGestureState == GESTURE_STATE_PANNING && mResamplingEnabled &&
+               mResampler.hasSamples()) {
+      mResampler.resample(frameTimeNanos / 1e6);
+      mPendingScrollX += mResampler.getX() - mPanLastX;
+      mPendingScrollY += mResampler.getY() - mPanLastY;
+      mPanLastX = mScrollAnchorX = mResampler.getX();
+      mPanLastY = mScrollAnchorY = mResampler.getY();
+    }
+
+    flushPendingScroll();
+  }
+
+  /* package */ boolean handleMouseEvent(
           int action, long time, int metaState,
           float x, float y, int buttons) {
+
+    if (mRecorder != null) {
+      mRecorder.recordMouse(action, time, metaState, x, y, buttons);
+    }
+    receiveEvent(time);
+
+    // FIXME: the engine only takes clicks from a mouse, so moves, hovering and
+    // other buttons are dropped. A primary button press and release that stay
+    // within the touch slop is a click; anything further is a drag.
+    final boolean wasDown = (mMouseButtons & MotionEvent.BUTTON_PRIMARY) != 0;
+    final boolean isDown = (buttons & MotionEvent.BUTTON_PRIMARY) != 0;
+    mMouseButtons = buttons;
+
+    if (isDown && !wasDown) {
+      mMouseClickPossible = true;
+      mMouseDownX = x;
+      mMouseDownY = y;
+    } else if (isDown && mMouseClickPossible &&
+               Math.hypot(x - mMouseDownX, y - mMouseDownY) >= mTouchSlop) {
+      mMouseClickPossible = false;
+    } else if (!isDown && wasDown && mMouseClickPossible) {
+      mMouseClickPossible = false;
+      if (Math.hypot(x - mMouseDownX, y - mMouseDownY) < mTouchSlop) {
+        mDispatcher.click((int)x, (int)y);
+      }
+    }
     return true;
   }
 
+  private int mMouseButtons;
+  private boolean mMouseClickPossible;
+  private float mMouseDownX;
+  private float mMouseDownY;
+
   private boolean handleMotionEvent(MotionEvent event) {
     if (!mAttached) {
-      mQueuedEvents.add(new Pair(EVENT_SOURCE_MOTION, event));
+      mQueuedEvents.addMotion(event);
       return false;
     }
 
@@ -88,49 +657,52 @@ public final class PanZoomController {
       return false;
     }
 
-    final int[] pointerId = new int[count];
-    final float[] x = new float[count];
-    final float[] y = new float[count];
-    final float[] orientation = new float[count];
-    final float[] pressure = new float[count];
-    final float[] toolMajor = new float[count];
-    final float[] toolMinor = new float[count];
+    ensurePointerCapacity(count);
+
+    // The samples batched into this event come first; the current sample is
+    // handled below.
+    final int historySize = event.getHistorySize();
+    for (int h = 0; h < historySize; h++) {
+      for (int i = 0; i < count; i++) {
+        mPointerId[i] = event.getPointerId(i);
+        mX[i] = event.getHistoricalX(i, h);
+        mY[i] = event.getHistoricalY(i, h);
+        mPressure[i] = event.getHistoricalPressure(i, h);
+      }
+      handleTouchHistory(event.getHistoricalEventTime(h), count, mPointerId, mX, mY,
+                         mPressure);
+    }
 
-    final MotionEvent.PointerCoords coords = new MotionEvent.PointerCoords();
+    final MotionEvent.PointerCoords coords = mCoords;
 
     for (int i = 0; i < count; i++) {
-      pointerId[i] = event.getPointerId(i);
+      mPointerId[i] = event.getPointerId(i);
       event.getPointerCoords(i, coords);
 
-      x[i] = coords.x;
-      y[i] = coords.y;
+      mX[i] = coords.x;
+      mY[i] = coords.y;
 
-      orientation[i] = coords.orientation;
-      pressure[i] = coords.pressure;
+      mOrientation[i] = coords.orientation;
+      mPressure[i] = coords.pressure;
 
       // If we are converting to CSS pixels, we should adjust the radii as well.
-      toolMajor[i] = coords.toolMajor;
-      toolMinor[i] = coords.toolMinor;
+      mToolMajor[i] = coords.toolMajor;
+      mToolMinor[i] = coords.toolMinor;
     }
 
     return handleMotionEvent(action, event.getActionIndex(), event.getEventTime(),
-            event.getMetaState(), pointerId, x, y, orientation, pressure,
-            toolMajor, toolMinor);
+            event.getMetaState(), count, mPointerId, mX, mY, mOrientation, mPressure,
+            mToolMajor, mToolMinor);
   }
 
   private boolean handleScrollEvent(MotionEvent event) {
-    if (!mAttached) {
-      mQueuedEvents.add(new Pair(EVENT_SOURCE_SCROLL, event));
-      return false;
-    }
-
     final int count = event.getPointerCount();
 
     if (count <= 0) {
       return false;
     }
 
-    final MotionEvent.PointerCoords coords = new MotionEvent.PointerCoords();
+    final MotionEvent.PointerCoords coords = mCoords;
     event.getPointerCoords(0, coords);
 
     // Translate surface origin to client origin for scroll events.
@@ -143,23 +715,24 @@ public final class PanZoomController {
     final float vScroll = event.getAxisValue(MotionEvent.AXIS_VSCROLL) *
             mPointerScrollFactor;
 
+    if (!mAttached) {
+      mQueuedEvents.addScroll(event.getEventTime(), event.getMetaState(), x, y,
+              hScroll, vScroll);
+      return false;
+    }
+
     return handleScrollEvent(event.getEventTime(), event.getMetaState(), x, y,
             hScroll, vScroll);
   }
 
   private boolean handleMouseEvent(MotionEvent event) {
-    if (!mAttached) {
-      mQueuedEvents.add(new Pair(EVENT_SOURCE_MOUSE, event));
-      return false;
-    }
-
     final int count = event.getPointerCount();
 
     if (count <= 0) {
       return false;
     }
 
-    final MotionEvent.PointerCoords coords = new MotionEvent.PointerCoords();
+    final MotionEvent.PointerCoords coords = mCoords;
     event.getPointerCoords(0, coords);
 
     // Translate surface origin to client origin for mouse events.
@@ -167,6 +740,12 @@ public final class PanZoomController {
     final float x = coords.x - mTempRect.left;
     final float y = coords.y - mTempRect.top;
 
+    if (!mAttached) {
+      mQueuedEvents.addMouse(event.getActionMasked(), event.getEventTime(),
+              event.getMetaState(), x, y, event.getButtonState());
+      return false;
+    }
+
     return handleMouseEvent(event.getActionMasked(), event.getEventTime(),
             event.getMetaState(), x, y, event.getButtonState());
   }
@@ -192,6 +771,195 @@ public final class PanZoomController {
     return mPointerScrollFactor;
   }
 
+  /**
+   * Start recording the touch, scroll and mouse input handled by this controller
+   * to a binary trace, which can be replayed with {@link InputTraceReplayer}.
+   * Touch events are recorded with the historical samples batched into them.
+   * Events are written as they are dispatched, so the stream should be cheap to
+   * write to, e.g. a {@link java.io.ByteArrayOutputStream}.
+   *
+   * @param out Stream to write the trace to.
+   * @throws IOException If the trace header cannot be written.
+   */
+  public void startRecording(@NonNull final OutputStream out) throws IOException {
+    ThreadUtils.assertOnUiThread();
+    if (mRecorder != null) {
+      throw new IllegalStateException("Already recording");
+    }
+    mRecorder = new InputTraceRecorder(out);
+  }
+
+  /**
+   * Stop recording input and flush the trace. The stream passed to
+   * {@link #startRecording} is not closed.
+   *
+   * @throws IOException If writing any part of the trace failed.
+   */
+  public void stopRecording() throws IOException {
+    ThreadUtils.assertOnUiThread();
+    if (mRecorder == null) {
+      return;
+    }
+    final InputTraceRecorder recorder = mRecorder;
+    mRecorder = null;
+    recorder.finish();
+  }
+
+  /**
+   * Set whether input is sent to the session from a dedicated input thread. When
+   * enabled, the calls this controller makes into the session are queued as compact
+   * records through a lock-free queue and made on the input thread, so that a slow
+   * engine call does not block the UI thread. Disabling waits for queued calls to
+   * be made.
+   *
+   * @param enabled True if input should be dispatched on the input thread.
+   */
+  public void setDispatchThreadEnabled(final boolean enabled) {
+    ThreadUtils.assertOnUiThread();
+    mDispatcher.setThreaded(enabled);
+  }
+
+  /**
+   * Get whether input is sent to the session from a dedicated input thread.
+   *
+   * @return True if input is dispatched on the input thread.
+   */
+  public boolean isDispatchThreadEnabled() {
+    ThreadUtils.assertOnUiThread();
+    return mDispatcher.isThreaded();
+  }
+
+  /**
+   * Get the number of calls currently queued for the input thread.
+   *
+   * @return Current queue depth.
+   */
+  public int getDispatchQueueDepth() {
+    return mDispatcher.getQueueDepth();
+  }
+
+  /**
+   * Get the largest number of calls that were queued for the input thread at once.
+   *
+   * @return Maximum queue depth.
+   */
+  public int getDispatchQueueMaxDepth() {
+    ThreadUtils.assertOnUiThread();
+    return mDispatcher.getMaxQueueDepth();
+  }
+
+  /**
+   * Get the mean time calls spent queued before the input thread made them.
+   *
+   * @return Mean wait time, in nanoseconds.
+   */
+  public long getDispatchMeanWaitNanos() {
+    return mDispatcher.getMeanWaitNanos();
+  }
+
+  /**
+   * Get the longest time a call spent queued before the input thread made it.
+   *
+   * @return Maximum wait time, in nanoseconds.
+   */
+  public long getDispatchMaxWaitNanos() {
+    return mDispatcher.getMaxWaitNanos();
+  }
+
+  /**
+   * Reset the input thread queue metrics.
+   */
+  public void resetDispatchMetrics() {
+    ThreadUtils.assertOnUiThread();
+    mDispatcher.resetMetrics();
+  }
+
+  /**
+   * Set whether pointer positions are resampled to the frame time while panning.
+   * Positions are interpolated between recent samples, or extrapolated by a few
+   * milliseconds when input lags behind the display, which reduces the perceived
+   * latency of dragging.
+   *
+   * @param enabled True if pan positions should be resampled.
+   */
+  public void setResamplingEnabled(final boolean enabled) {
+    ThreadUtils.assertOnUiThread();
+    mResamplingEnabled = enabled;
+    mResampler.reset();
+  }
+
+  /**
+   * Get whether pointer positions are resampled to the frame time while panning.
+   *
+   * @return True if pan positions are resampled.
+   */
+  public boolean isResamplingEnabled() {
+    ThreadUtils.assertOnUiThread();
+    return mResamplingEnabled;
+  }
+
+  /**
+   * Get the mean distance between extrapolated pan positions and the positions
+   * the pointer was later found to have at those times.
+   *
+   * @return Mean prediction error in pixels.
+   */
+  public float getResamplingMeanError() {
+    ThreadUtils.assertOnUiThread();
+    return mResampler.getMeanError();
+  }
+
+  /**
+   * Get the largest distance between an extrapolated pan position and the
+   * position the pointer was later found to have at that time.
+   *
+   * @return Maximum prediction error in pixels.
+   */
+  public float getResamplingMaxError() {
+    ThreadUtils.assertOnUiThread();
+    return mResampler.getMaxError();
+  }
+
+  /**
+   * Reset the resampling error statistics.
+   */
+  public void resetResamplingError() {
+    ThreadUtils.assertOnUiThread();
+    mResampler.resetError();
+  }
+
+  /**
+   * Set the fling friction. A fling started at velocity v travels v / friction pixels
+   * in total, decelerating exponentially; higher values stop the fling sooner.
+   *
+   * @param friction Fling friction, per second. Must be positive.
+   */
+  public void setFlingFriction(final float friction) {
+    ThreadUtils.assertOnUiThread();
+    mKinetic.setFriction(friction);
+  }
+
+  /**
+   * Get the current fling friction.
+   *
+   * @return Fling friction, per second.
+   */
+  public float getFlingFriction() {
+    ThreadUtils.assertOnUiThread();
+    return mKinetic.getFriction();
+  }
+
+  /**
+   * Get the number of scroll events that were merged into the most recent scroll call
+   * sent to the session. Scroll events are coalesced until the next display frame.
+   *
+   * @return Number of coalesced scroll events.
+   */
+  public int getCoalescedScrollEventCount() {
+    ThreadUtils.assertOnUiThread();
+    return mCoalescedScrollEvents;
+  }
+
   /**
    * Process a touch event through the pan-zoom controller. Treat any mouse events as
    * "touch" rather than as "mouse". Pointer coordinates should be relative to the
@@ -259,33 +1027,25 @@ public final class PanZoomController {
     }
   }
 
-  private void enableEventQueue() {
-    if (mQueuedEvents != null) {
-      throw new IllegalStateException("Already have an event queue");
-    }
-    mQueuedEvents = new ArrayList();
-  }
-
   private void flushEventQueue() {
-    if (mQueuedEvents == null) {
-      return;
-    }
-
-    ArrayList<Pair<Integer, MotionEvent>> events = mQueuedEvents;
-    mQueuedEvents = null;
-    for (Pair<Integer, MotionEvent> pair : events) {
-      switch (pair.first) {
-        case EVENT_SOURCE_MOTION:
-          handleMotionEvent(pair.second);
+    final InputEventQueue events = mQueuedEvents;
+    for (int i = 0; i < events.size(); i++) {
+      switch (events.getSource(i)) {
+        case InputEventQueue.EVENT_SOURCE_MOTION:
+          handleMotionEvent(events.getEvent(i));
           break;
-        case EVENT_SOURCE_SCROLL:
-          handleScrollEvent(pair.second);
+        case InputEventQueue.EVENT_SOURCE_SCROLL:
+          handleScrollEvent(events.getTime(i), events.getMetaState(i),
+                  events.getX(i), events.getY(i),
+                  events.getHScroll(i), events.getVScroll(i));
           break;
-        case EVENT_SOURCE_MOUSE:
-          handleMouseEvent(pair.second);
+        case InputEventQueue.EVENT_SOURCE_MOUSE:
+          handleMouseEvent(events.getAction(i), events.getTime(i), events.getMetaState(i),
+                  events.getX(i), events.getY(i), events.getButtons(i));
           break;
       }
     }
+    events.clear();
   }
 
   private void setAttached(final boolean attached) {
@@ -293,9 +1053,9 @@ public final class PanZoomController {
       mAttached = true;
       flushEventQueue();
     } else if (mAttached) {
+      endScrollGesture();
       mAttached = false;
 //      disposeNative();
-      enableEventQueue();
     }
   }
 //
@@ -332,59 +1092,112 @@ public final class PanZoomController {
     public double pressure;
     public int orientation;
 
-    public MotionEvent.PointerCoords getCoords() {
-      MotionEvent.PointerCoords coords = new MotionEvent.PointerCoords();
+    public void getCoords(final MotionEvent.PointerCoords coords) {
+      coords.clear();
       coords.orientation = orientation;
       coords.pressure = (float)pressure;
       coords.x = surfaceX;
       coords.y = surfaceY;
-      return coords;
     }
   }
 
+  // Pointers are kept in the order they went down, which is also their order
+  // in synthesized events. A table indexed by pointer ID finds them without a
+  // scan, and the PointerInfo objects and the property and coordinate arrays
+  // handed to MotionEvent.obtain are reused from event to event.
   private static class SynthesizedEventState {
-    public final ArrayList<PointerInfo> pointers;
+    private static final int INITIAL_CAPACITY = 4;
+
+    private PointerInfo[] pointers = new PointerInfo[INITIAL_CAPACITY];
+    private int pointerCount;
+    private final SparseIntArray indexById = new SparseIntArray(INITIAL_CAPACITY);
+    private MotionEvent.PointerProperties[] props =
+            new MotionEvent.PointerProperties[INITIAL_CAPACITY];
+    private MotionEvent.PointerCoords[] coords =
+            new MotionEvent.PointerCoords[INITIAL_CAPACITY];
     public long downTime;
 
-    SynthesizedEventState() {
-      pointers = new ArrayList<PointerInfo>();
+    int size() {
+      return pointerCount;
+    }
+
+    PointerInfo get(int index) {
+      return pointers[index];
     }
 
     int getPointerIndex(int pointerId) {
-      for (int i = 0; i < pointers.size(); i++) {
-        if (pointers.get(i).pointerId == pointerId) {
-          return i;
-        }
-      }
-      return -1;
+      return indexById.get(pointerId, -1);
     }
 
     int addPointer(int pointerId, int source) {
-      PointerInfo info = new PointerInfo();
+      if (pointerCount == pointers.length) {
+        pointers = Arrays.copyOf(pointers, pointerCount * 2);
+      }
+      PointerInfo info = pointers[pointerCount];
+      if (info == null) {
+        info = new PointerInfo();
+        pointers[pointerCount] = info;
+      }
       info.pointerId = pointerId;
       info.source = source;
-      pointers.add(info);
-      return pointers.size() - 1;
+      indexById.put(pointerId, pointerCount);
+      return pointerCount++;
+    }
+
+    void removePointer(int index) {
+      final PointerInfo removed = pointers[index];
+      indexById.delete(removed.pointerId);
+      for (int i = index; i < pointerCount - 1; i++) {
+        pointers[i] = pointers[i + 1];
+        indexById.put(pointers[i].pointerId, i);
+      }
+      // Keep the removed object around for reuse.
+      pointers[--pointerCount] = removed;
     }
 
     int getPointerCount(int source) {
       int count = 0;
-      for (int i = 0; i < pointers.size(); i++) {
-        if (pointers.get(i).source == source) {
+      for (int i = 0; i < pointerCount; i++) {
+        if (pointers[i].source == source) {
           count++;
         }
       }
       return count;
     }
 
+    // Index of the given pointer among the pointers of its source, which is
+    // its index in synthesized events.
+    int getEventIndex(int index) {
+      final int source = pointers[index].source;
+      int eventIndex = 0;
+      for (int i = 0; i < index; i++) {
+        if (pointers[i].source == source) {
+          eventIndex++;
+        }
+      }
+      return eventIndex;
+    }
+
+    private void ensureEventCapacity(int count) {
+      if (count <= props.length) {
+        return;
+      }
+      final int capacity = Math.max(count, props.length * 2);
+      props = Arrays.copyOf(props, capacity);
+      coords = Arrays.copyOf(coords, capacity);
+    }
+
     MotionEvent.PointerProperties[] getPointerProperties(int source) {
-      MotionEvent.PointerProperties[] props =
-              new MotionEvent.PointerProperties[getPointerCount(source)];
+      ensureEventCapacity(pointerCount);
       int index = 0;
-      for (int i = 0; i < pointers.size(); i++) {
-        if (pointers.get(i).source == source) {
-          MotionEvent.PointerProperties p = new MotionEvent.PointerProperties();
-          p.id = pointers.get(i).pointerId;
+      for (int i = 0; i < pointerCount; i++) {
+        if (pointers[i].source == source) {
+          if (props[index] == null) {
+            props[index] = new MotionEvent.PointerProperties();
+          }
+          MotionEvent.PointerProperties p = props[index++];
+          p.clear();
+          p.id = pointers[i].pointerId;
           switch (source) {
             case InputDevice.SOURCE_TOUCHSCREEN:
               p.toolType = MotionEvent.TOOL_TYPE_FINGER;
@@ -393,19 +1206,20 @@ public final class PanZoomController {
               p.toolType = MotionEvent.TOOL_TYPE_MOUSE;
               break;
           }
-          props[index++] = p;
         }
       }
       return props;
     }
 
     MotionEvent.PointerCoords[] getPointerCoords(int source) {
-      MotionEvent.PointerCoords[] coords =
-              new MotionEvent.PointerCoords[getPointerCount(source)];
+      ensureEventCapacity(pointerCount);
       int index = 0;
-      for (int i = 0; i < pointers.size(); i++) {
-        if (pointers.get(i).source == source) {
-          coords[index++] = pointers.get(i).getCoords();
+      for (int i = 0; i < pointerCount; i++) {
+        if (pointers[i].source == source) {
+          if (coords[index] == null) {
+            coords[index] = new MotionEvent.PointerCoords();
+          }
+          pointers[i].getCoords(coords[index++]);
         }
       }
       return coords;
@@ -430,7 +1244,7 @@ public final class PanZoomController {
           Log.w(LOGTAG, "Pointer-up for invalid pointer");
           return;
         }
-        if (mPointerState.pointers.size() == 1) {
+        if (mPointerState.size() == 1) {
           // Last pointer is going up
           eventType = MotionEvent.ACTION_UP;
         }
@@ -475,7 +1289,7 @@ public final class PanZoomController {
     final int surfaceY = clientY + mTempRect.top;
 
     // Update the pointer with the new info
-    PointerInfo info = mPointerState.pointers.get(pointerIndex);
+    PointerInfo info = mPointerState.get(pointerIndex);
     info.surfaceX = surfaceX;
     info.surfaceY = surfaceY;
     info.pressure = pressure;
@@ -487,7 +1301,8 @@ public final class PanZoomController {
             eventType == MotionEvent.ACTION_POINTER_UP) {
       // for pointer-down and pointer-up events we need to add the
       // index of the relevant pointer.
-      action = (pointerIndex << MotionEvent.ACTION_POINTER_INDEX_SHIFT);
+      action = (mPointerState.getEventIndex(pointerIndex) <<
+                MotionEvent.ACTION_POINTER_INDEX_SHIFT);
       action &= MotionEvent.ACTION_POINTER_INDEX_MASK;
     }
     action |= (eventType & MotionEvent.ACTION_MASK);
@@ -509,7 +1324,12 @@ public final class PanZoomController {
             /*edgeFlags*/ 0,
             /*source*/ source,
             /*flags*/ 0);
-    onTouchEvent(event);
+    if (source == InputDevice.SOURCE_MOUSE) {
+      onMouseEvent(event);
+    } else {
+      onTouchEvent(event);
+    }
+    event.recycle();
 
     // Forget about removed pointers
     if (eventType == MotionEvent.ACTION_POINTER_UP ||
@@ -517,24 +1337,51 @@ public final class PanZoomController {
             eventType == MotionEvent.ACTION_CANCEL ||
             eventType == MotionEvent.ACTION_HOVER_MOVE)
     {
-      mPointerState.pointers.remove(pointerIndex);
+      mPointerState.removePointer(pointerIndex);
     }
   }
 
-//  @WrapForJNI(calledFrom = "ui")
-//  private void synthesizeNativeTouchPoint(int pointerId, int eventType, int clientX,
-//                                          int clientY, double pressure, int orientation) {
-//    if (pointerId == PointerInfo.RESERVED_MOUSE_POINTER_ID) {
-//      throw new IllegalArgumentException("Pointer ID reserved for mouse");
-//    }
-//    synthesizeNativePointer(InputDevice.SOURCE_TOUCHSCREEN, pointerId,
-//            eventType, clientX, clientY, pressure, orientation);
-//  }
-//
-//  @WrapForJNI(calledFrom = "ui")
-//  private void synthesizeNativeMouseEvent(int eventType, int clientX, int clientY) {
-//    synthesizeNativePointer(InputDevice.SOURCE_MOUSE,
-//            PointerInfo.RESERVED_MOUSE_POINTER_ID,
-//            eventType, clientX, clientY, 0, 0);
-//  }
+  /**
+   * Inject a synthesized touch event, as if it came from the touchscreen. Use
+   * {@link MotionEvent#ACTION_POINTER_DOWN} both to put a pointer down and to move
+   * a pointer that is already down, and {@link MotionEvent#ACTION_POINTER_UP} or
+   * {@link MotionEvent#ACTION_CANCEL} to lift it. The controller keeps track of the
+   * pointers that are down and sends the matching MotionEvent for all of them.
+   *
+   * Injection does not allocate once the pointer table has grown to the number of
+   * pointers used, so it is suitable for high-rate automated input.
+   *
+   * @param pointerId ID of the pointer.
+   * @param eventType One of the actions above.
+   * @param clientX Horizontal position, relative to the client origin.
+   * @param clientY Vertical position, relative to the client origin.
+   * @param pressure Pressure of the pointer, from 0 to 1.
+   * @param orientation Orientation of the pointer, in radians.
+   */
+  public void synthesizeNativeTouchPoint(int pointerId, int eventType, int clientX,
+                                         int clientY, double pressure, int orientation) {
+    ThreadUtils.assertOnUiThread();
+    if (pointerId == PointerInfo.RESERVED_MOUSE_POINTER_ID) {
+      throw new IllegalArgumentException("Pointer ID reserved for mouse");
+    }
+    synthesizeNativePointer(InputDevice.SOURCE_TOUCHSCREEN, pointerId,
+            eventType, clientX, clientY, pressure, orientation);
+  }
+
+  /**
+   * Inject a synthesized mouse event. Use {@link MotionEvent#ACTION_HOVER_MOVE} to
+   * move the mouse with no button down, {@link MotionEvent#ACTION_POINTER_DOWN} to
+   * press the primary button or move while it is pressed, and
+   * {@link MotionEvent#ACTION_POINTER_UP} to release it.
+   *
+   * @param eventType One of the actions above.
+   * @param clientX Horizontal position, relative to the client origin.
+   * @param clientY Vertical position, relative to the client origin.
+   */
+  public void synthesizeNativeMouseEvent(int eventType, int clientX, int clientY) {
+    ThreadUtils.assertOnUiThread();
+    synthesizeNativePointer(InputDevice.SOURCE_MOUSE,
+            PointerInfo.RESERVED_MOUSE_POINTER_ID,
+            eventType, clientX, clientY, 0, 0);
+  }
 }
@@ -0,0 +1,464 @@
+/* This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this file,
+ * You can obtain one at http://mozilla.org/MPL/2.0/. */
+
+package org.mozilla.gecko.util;
+
+import android.os.Handler;
+import android.os.Looper;
+import android.os.Message;
+
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Runs background tasks on a pool of worker threads, one per processor, in a few
+ * priority lanes. Each worker has its own queue per lane; tasks posted from a worker go
+ * to its own queues and other tasks are spread over the workers by posting thread. Workers
+ * always take the highest-priority task available, from their own queues first and then by
+ * stealing from the other workers, so a slow task only holds up its own worker.
+ *
+ * Posting a task takes no lock: it is queued, counted, and only if a worker is idle, handed
+ * to one by unparking it.
+ *
+ * Tasks may run concurrently and, across workers, out of order. Tasks that need to run
+ * one at a time and in order go to the {@link #getSerialExecutor() serial lane} instead.
+ * Delayed tasks wait on a single timer thread, which also backs {@link #getHandler()},
+ * and are handed to the workers when due.
+ */
+public final class BackgroundExecutor implements Executor {
+    private static final String TIMER_NAME = "GeckoBackgroundThread";
+    private static final String WORKER_NAME = "GeckoBackgroundWorker #";
+
+    public static final int PRIORITY_HIGH = 0;
+    public static final int PRIORITY_NORMAL = 1;
+    public static final int PRIORITY_LOW = 2;
+    private static final int LANE_COUNT = 3;
+    // Lane of timer messages for the serial lane.
+    private static final int LANE_SERIAL = LANE_COUNT;
+
+    // The only message the timer handler sends itself; the lane is in arg1.
+    private static final int MSG_EXECUTE = 1;
+
+    // Worker states. Only an idle worker waits, and whoever moves it from IDLE
+    // to WOKEN takes it off the idle count.
+    private static final int RUNNING = 0;
+    private static final int IDLE = 1;
+    private static final int WOKEN = 2;
+
+    // Published with compare-and-set, so that getting the executor never
+    // takes a lock; once it is set, getInstance() is a single volatile read.
+    private static final AtomicReference<BackgroundExecutor> sInstance =
+            new AtomicReference<>();
+
+    private final Worker[] mWorkers;
+
+    // Workers that are IDLE, or about to look for work a last time before
+    // parking. A worker raises it before that last look, so a task queued
+    // before the look is found and one queued after it sees the worker idle.
+    private final AtomicInteger mIdleWorkers = new AtomicInteger();
+
+    // Tasks queued and taken per lane; the difference is the queue depth.
+    private final AtomicLongArray mQueued = new AtomicLongArray(LANE_COUNT);
+    private final AtomicLongArray mExecuted = new AtomicLongArray(LANE_COUNT);
+    private final AtomicLongArray mMaxDepth = new AtomicLongArray(LANE_COUNT);
+    // Value of mExecuted at the last resetMetrics().
+    private final AtomicLongArray mExecutedBase = new AtomicLongArray(LANE_COUNT);
+
+    private final Thread mTimerThread;
+    private final CountDownLatch mTimerReady = new CountDownLatch(1);
+    // Handles the delayed tasks; embedders get mHandler instead, so that their
+    // messages never reach TimerHandler.
+    private volatile Handler mTimerHandler;
+    private volatile Handler mHandler;
+
+    private final SerialLane mSerialLane = new SerialLane();
+
+    private final class Worker extends Thread {
+        public final int index;
+        public final ConcurrentLinkedQueue<Runnable>[] queues;
+        // One of RUNNING, IDLE or WOKEN.
+        public final AtomicInteger idleState = new AtomicInteger(RUNNING);
+
+        @SuppressWarnings("unchecked")
+        public Worker(final int index) {
+            super(WORKER_NAME + (index + 1));
+            this.index = index;
+            queues = (ConcurrentLinkedQueue<Runnable>[]) new ConcurrentLinkedQueue[LANE_COUNT];
+            for (int lane = 0; lane < LANE_COUNT; lane++) {
+                queues[lane] = new ConcurrentLinkedQueue<>();
+            }
+        }
+
+        public BackgroundExecutor getExecutor() {
+            return BackgroundExecutor.this;
+        }
+
+        @Override
+        public void run() {
+            for (;;) {
+                final Runnable task = takeTask(this);
+                try {
+                    task.run();
+                } catch (final Throwable e) {
+                    // Keep the worker alive, but report the exception like an
+                    // uncaught exception on a looper thread would be.
+                    final Thread.UncaughtExceptionHandler handler =
+                            Thread.getDefaultUncaughtExceptionHandler();
+                    if (handler != null) {
+                        handler.uncaughtException(this, e);
+                    }
+                }
+            }
+        }
+    }
+
+    private final class TimerHandler extends Handler {
+        @Override
+        public void handleMessage(final Message msg) {
+            if (msg.what != MSG_EXECUTE) {
+                super.handleMessage(msg);
+            } else if (msg.arg1 == LANE_SERIAL) {
+                mSerialLane.execute((Runnable) msg.obj);
+            } else {
+                execute((Runnable) msg.obj, msg.arg1);
+            }
+        }
+    }
+
+    // Runs its tasks one at a time and in order, each as a PRIORITY_NORMAL task
+    // of the pool. Whoever raises mCount from zero schedules the lane, and the
+    // lane reschedules itself until it has run every task counted.
+    private final class SerialLane implements Executor, Runnable {
+        private final ConcurrentLinkedQueue<Runnable> mTasks = new ConcurrentLinkedQueue<>();
+        private final AtomicInteger mCount = new AtomicInteger();
+
+        @Override
+        public void execute(final Runnable runnable) {
+            if (runnable == null) {
+                throw new IllegalArgumentException("Runnable must not be null");
+            }
+            mTasks.offer(runnable);
+            if (mCount.getAndIncrement() == 0) {
+                BackgroundExecutor.this.execute(this, PRIORITY_NORMAL);
+            }
+        }
+
+        @Override
+        public void run() {
+            try {
+                mTasks.poll().run();
+            } finally {
+                if (mCount.decrementAndGet() > 0) {
+                    BackgroundExecutor.this.execute(this, PRIORITY_NORMAL);
+                }
+            }
+        }
+    }
+
+    // Only allocates; threads are started by start(), so that an instance that
+    // loses the race in getInstance() can simply be dropped.
+    private BackgroundExecutor() {
+        final int count = Math.max(2, Runtime.getRuntime().availableProcessors());
+        mWorkers = new Worker[count];
+        for (int i = 0; i < count; i++) {
+            mWorkers[i] = new Worker(i);
+            mWorkers[i].setDaemon(true);
+        }
+
+        mTimerThread = new Thread(TIMER_NAME) {
+            @Override
+            public void run() {
+                Looper.prepare();
+                mHandler = new Handler();
+                mTimerHandler = new TimerHandler();
+                mTimerReady.countDown();
+                Looper.loop();
+            }
+        };
+        mTimerThread.setDaemon(true);
+    }
+
+    private void start() {
+        ThreadUtils.setBackgroundThread(mTimerThread);
+        mTimerThread.start();
+        // Workers steal from each other, so start them only once all exist.
+        // Tasks queued before then are picked up when they start.
+        for (final Worker worker : mWorkers) {
+            worker.start();
+        }
+    }
+
+    // Get the executor, or create it if it doesn't yet exist.
+    /* package */ static BackgroundExecutor getInstance() {
+        final BackgroundExecutor instance = sInstance.get();
+        if (instance != null) {
+            return instance;
+        }
+
+        final BackgroundExecutor created = new BackgroundExecutor();
+        if (sInstance.compareAndSet(null, created)) {
+            created.start();
+            return created;
+        }
+        return sInstance.get();
+    }
+
+    /**
+     * Get a Handler for the timer thread. Runnables posted to it run on the timer thread
+     * itself, so they should be short; longer work belongs in {@link #execute}. The first
+     * call may wait for the timer thread to start.
+     */
+    public Handler getHandler() {
+        final Handler handler = mHandler;
+        if (handler != null) {
+            return handler;
+        }
+        awaitTimer();
+        return mHandler;
+    }
+
+    private Handler getTimerHandler() {
+        final Handler handler = mTimerHandler;
+        if (handler != null) {
+            return handler;
+        }
+        awaitTimer();
+        return mTimerHandler;
+    }
+
+    private void awaitTimer() {
+        boolean interrupted = false;
+        while (mTimerReady.getCount() > 0) {
+            try {
+                mTimerReady.await();
+            } catch (final InterruptedException e) {
+                interrupted = true;
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Get an executor that runs its tasks on the workers one at a time, in the order
+     * they were posted. Its tasks run in the PRIORITY_NORMAL lane, but not always on
+     * the same worker.
+     */
+    public Executor getSerialExecutor() {
+        return mSerialLane;
+    }
+
+    /**
+     * Get whether the current thread is one of the worker threads.
+     */
+    public boolean isWorkerThread() {
+        return getCurrentWorker() != null;
+    }
+
+    private Worker getCurrentWorker() {
+        final Thread thread = Thread.currentThread();
+        if (thread instanceof Worker && ((Worker) thread).getExecutor() == this) {
+            return (Worker) thread;
+        }
+        return null;
+    }
+
+    @Override
+    public void execute(final Runnable runnable) {
+        execute(runnable, PRIORITY_NORMAL);
+    }
+
+    /**
+     * Run a task in the specified lane.
+     *
+     * @param runnable Task to run.
+     * @param priority One of the PRIORITY_* constants.
+     * @throws IllegalArgumentException If the priority is not one of the PRIORITY_* constants.
+     */
+    public void execute(final Runnable runnable, final int priority) {
+        if (runnable == null) {
+            throw new IllegalArgumentException("Runnable must not be null");
+        }
+        checkPriority(priority);
+
+        Worker worker = getCurrentWorker();
+        if (worker == null) {
+            // Spread posting threads over the workers without sharing a counter.
+            worker = mWorkers[(int) ((Thread.currentThread().getId() & Integer.MAX_VALUE) %
+                                     mWorkers.length)];
+        }
+
+        // Count the task before queueing it, so that it is never taken uncounted.
+        final long depth = mQueued.incrementAndGet(priority) - mExecuted.get(priority);
+        long max = mMaxDepth.get(priority);
+        while (depth > max && !mMaxDepth.compareAndSet(priority, max, depth)) {
+            max = mMaxDepth.get(priority);
+        }
+
+        worker.queues[priority].offer(runnable);
+
+        if (mIdleWorkers.get() > 0) {
+            wakeIdleWorker(worker.index);
+        }
+    }
+
+    private static void checkPriority(final int priority) {
+        if (priority < 0 || priority >= LANE_COUNT) {
+            throw new IllegalArgumentException("Unknown priority " + priority);
+        }
+    }
+
+    // Wake one idle worker, preferring the one at the given index.
+    private void wakeIdleWorker(final int first) {
+        final int count = mWorkers.length;
+        for (int i = 0; i < count; i++) {
+            final Worker worker = mWorkers[(first + i) % count];
+            if (worker.idleState.get() == IDLE &&
+                    worker.idleState.compareAndSet(IDLE, WOKEN)) {
+                mIdleWorkers.decrementAndGet();
+                LockSupport.unpark(worker);
+                return;
+            }
+        }
+    }
+
+    /**
+     * Run a task in the specified lane after a delay.
+     *
+     * @param runnable Task to run.
+     * @param delayMillis Delay in milliseconds.
+     * @param priority One of the PRIORITY_* constants.
+     * @throws IllegalArgumentException If the priority is not one of the PRIORITY_* constants.
+     */
+    public void executeDelayed(final Runnable runnable, final long delayMillis,
+                               final int priority) {
+        // Checked here, and not once the delay is over on the timer thread.
+        checkPriority(priority);
+        sendDelayed(runnable, delayMillis, priority);
+    }
+
+    /**
+     * Run a task in the serial lane after a delay. It runs after the tasks posted to
+     * {@link #getSerialExecutor()} before it is due.
+     *
+     * @param runnable Task to run.
+     * @param delayMillis Delay in milliseconds.
+     */
+    public void executeSerialDelayed(final Runnable runnable, final long delayMillis) {
+        sendDelayed(runnable, delayMillis, LANE_SERIAL);
+    }
+
+    private void sendDelayed(final Runnable runnable, final long delayMillis, final int lane) {
+        if (runnable == null) {
+            throw new IllegalArgumentException("Runnable must not be null");
+        }
+        final Handler handler = getTimerHandler();
+        handler.sendMessageDelayed(handler.obtainMessage(MSG_EXECUTE, lane, 0, runnable),
+                                   delayMillis);
+    }
+
+    /**
+     * Remove pending delayed runs of a task, in all lanes and the serial lane.
+     *
+     * @param runnable Task passed to {@link #executeDelayed} or
+     *                 {@link #executeSerialDelayed}.
+     */
+    public void removeDelayed(final Runnable runnable) {
+        getTimerHandler().removeMessages(MSG_EXECUTE, runnable);
+    }
+
+    /**
+     * Get the number of tasks waiting in a lane.
+     *
+     * @param priority One of the PRIORITY_* constants.
+     */
+    public int getQueueDepth(final int priority) {
+        // Read the taken count first, so that the depth is never negative.
+        final long executed = mExecuted.get(priority);
+        return (int) (mQueued.get(priority) - executed);
+    }
+
+    /**
+     * Get the largest number of tasks that have waited in a lane at once.
+     *
+     * @param priority One of the PRIORITY_* constants.
+     */
+    public int getMaxQueueDepth(final int priority) {
+        return (int) mMaxDepth.get(priority);
+    }
+
+    /**
+     * Get the number of tasks of a lane that have started running.
+     *
+     * @param priority One of the PRIORITY_* constants.
+     */
+    public long getExecutedCount(final int priority) {
+        return mExecuted.get(priority) - mExecutedBase.get(priority);
+    }
+
+    public int getWorkerCount() {
+        return mWorkers.length;
+    }
+
+    public void resetMetrics() {
+        for (int lane = 0; lane < LANE_COUNT; lane++) {
+            mMaxDepth.set(lane, getQueueDepth(lane));
+            mExecutedBase.set(lane, mExecuted.get(lane));
+        }
+    }
+
+    // Takes the highest-priority task, from the worker's own queue or else
+    // from another worker's, waiting until there is one.
+    private Runnable takeTask(final Worker worker) {
+        for (;;) {
+            final Runnable task = findTask(worker);
+            if (task != null) {
+                return task;
+            }
+
+            worker.idleState.set(IDLE);
+            mIdleWorkers.incrementAndGet();
+
+            final Runnable late = findTask(worker);
+            if (late != null) {
+                if (worker.idleState.compareAndSet(IDLE, RUNNING)) {
+                    mIdleWorkers.decrementAndGet();
+                } else {
+                    // Woken meanwhile, and already off the idle count.
+                    worker.idleState.set(RUNNING);
+                }
+                return late;
+            }
+
+            while (worker.idleState.get() == IDLE) {
+                LockSupport.park(this);
+                // Nothing interrupts workers on purpose; don't let a stray
+                // interrupt turn parking into spinning.
+                Thread.interrupted();
+            }
+            worker.idleState.set(RUNNING);
+        }
+    }
+
+    private Runnable findTask(final Worker worker) {
+        final int count = mWorkers.length;
+        for (int lane = 0; lane < LANE_COUNT; lane++) {
+            for (int i = 0; i < count; i++) {
+                final Worker victim = mWorkers[(worker.index + i) % count];
+                final Runnable task = victim.queues[lane].poll();
+                if (task != null) {
+                    mExecuted.incrementAndGet(lane);
+                    return task;
+                }
+            }
+        }
+        return null;
+    }
+}
@@ -26,6 +26,8 @@ public final class ThreadUtils {
 
     private static final Thread sUiThread = Looper.getMainLooper().getThread();
     private static final Handler sUiHandler = new Handler(Looper.getMainLooper());
+    private static final UiThreadWatchdog sUiThreadWatchdog =
+            new UiThreadWatchdog(sUiThread, sUiHandler);
 
     private static volatile Thread sBackgroundThread;
 
@@ -77,6 +79,11 @@ public final class ThreadUtils {
         }
     }
 
+    // Detects UI thread stalls once started; see UiThreadWatchdog.
+    public static UiThreadWatchdog getUiThreadWatchdog() {
+        return sUiThreadWatchdog;
+    }
+
     public static void setBackgroundThread(Thread thread) {
         sBackgroundThread = thread;
     }
@@ -101,20 +108,47 @@ public final class ThreadUtils {
         sUiHandler.removeCallbacks(runnable);
     }
 
+    // Thread behind getBackgroundHandler(). Tasks posted with postToBackgroundThread()
+    // run on the worker pool instead, so use isOnBackgroundThread() to check for those.
     public static Thread getBackgroundThread() {
         return sBackgroundThread;
     }
 
+    // Handler for the background timer thread; see BackgroundExecutor.getHandler().
     public static Handler getBackgroundHandler() {
-        return GeckoBackgroundThread.getHandler();
+        return BackgroundExecutor.getInstance().getHandler();
+    }
+
+    public static BackgroundExecutor getBackgroundExecutor() {
+        return BackgroundExecutor.getInstance();
     }
 
+    // Runs tasks one at a time and in order, as the single background thread used to,
+    // but on whichever worker is free; see BackgroundExecutor.getSerialExecutor().
     public static void postToBackgroundThread(Runnable runnable) {
-        GeckoBackgroundThread.post(runnable);
+        BackgroundExecutor.getInstance().getSerialExecutor().execute(runnable);
+    }
+
+    // Tasks posted with a priority may run concurrently with each other and with the
+    // tasks posted without one.
+    public static void postToBackgroundThread(Runnable runnable, int priority) {
+        BackgroundExecutor.getInstance().execute(runnable, priority);
     }
 
+    // Runs in order with the tasks of postToBackgroundThread(Runnable) once due.
     public static void postDelayedToBackgroundThread(Runnable runnable, long timeout) {
-        GeckoBackgroundThread.postDelayed(runnable, timeout);
+        BackgroundExecutor.getInstance().executeSerialDelayed(runnable, timeout);
+    }
+
+    // Like postToBackgroundThread(Runnable, int) once due.
+    public static void postDelayedToBackgroundThread(Runnable runnable, long timeout,
+                                                     int priority) {
+        BackgroundExecutor.getInstance().executeDelayed(runnable, timeout, priority);
+    }
+
+    // Removes delayed runs posted with either postDelayedToBackgroundThread().
+    public static void removeCallbacksFromBackgroundThread(Runnable runnable) {
+        BackgroundExecutor.getInstance().removeDelayed(runnable);
     }
 
     public static void assertOnUiThread(final AssertBehavior assertBehavior) {
@@ -142,7 +176,10 @@ public final class ThreadUtils {
     }
 
     public static void assertOnBackgroundThread() {
-        assertOnThread(getBackgroundThread(), AssertBehavior.THROW);
+        if (!isOnBackgroundThread()) {
+            throw new IllegalThreadStateException("Expected a background thread, but running on " +
+                                                  "thread \"" + Thread.currentThread().getName() + "\"");
+        }
     }
 
     public static void assertOnThread(final Thread expectedThread) {
@@ -202,7 +239,8 @@ public final class ThreadUtils {
             return false;
         }
 
-        return isOnThread(sBackgroundThread);
+        return isOnThread(sBackgroundThread) ||
+               BackgroundExecutor.getInstance().isWorkerThread();
     }
 
     public static boolean isOnThread(Thread thread) {
@@ -0,0 +1,331 @@
+/* This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this file,
+ * You can obtain one at http://mozilla.org/MPL/2.0/. */
+
+package org.mozilla.gecko.util;
+
+import android.os.Handler;
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Detects stalls of the UI thread. While running, a watchdog thread posts a ping to
+ * the UI thread, waits for it for the stall threshold, and sleeps until the next ping
+ * if it was answered in time. Otherwise the UI thread is stalled: the watchdog samples
+ * its stack once, waits for the ping to be answered, and adds the stall to a report.
+ *
+ * Stalls are grouped by the sampled stack, so repeated stalls in the same place make a
+ * single entry. The report holds at most {@link #MAX_STALLS} entries; when it is full,
+ * the entry with the least total stall time makes way for a longer new stall.
+ *
+ * The overhead is one posted Runnable per threshold period while the UI thread is
+ * responsive, and one stack sample per stall.
+ */
+public final class UiThreadWatchdog {
+    private static final String LOGTAG = "UiThreadWatchdog";
+    private static final String THREAD_NAME = "UiThreadWatchdog";
+
+    public static final int MAX_STALLS = 32;
+    // Frames kept from each sample, counted from the top of the stack.
+    private static final int MAX_FRAMES = 32;
+
+    /**
+     * A group of stalls that were sampled in the same place.
+     */
+    public static final class Stall {
+        private final StackTraceElement[] mStack;
+        private final int mHash;
+        private int mCount;
+        private long mTotalMillis;
+        private long mMaxMillis;
+        private long mLastTime;
+
+        /* package */ Stall(final StackTraceElement[] stack) {
+            mStack = stack;
+            mHash = Arrays.hashCode(stack);
+        }
+
+        /* package */ Stall(final Stall other) {
+            mStack = other.mStack;
+            mHash = other.mHash;
+            mCount = other.mCount;
+            mTotalMillis = other.mTotalMillis;
+            mMaxMillis = other.mMaxMillis;
+            mLastTime = other.mLastTime;
+        }
+
+        /**
+         * Get the UI thread stack sampled when the stalls crossed the threshold.
+         */
+        public StackTraceElement[] getStack() {
+            return mStack.clone();
+        }
+
+        public int getCount() {
+            return mCount;
+        }
+
+        public long getTotalMillis() {
+            return mTotalMillis;
+        }
+
+        public long getMaxMillis() {
+            return mMaxMillis;
+        }
+
+        /**
+         * Get the uptime, in milliseconds, at which the last of the stalls ended.
+         */
+        public long getLastTime() {
+            return mLastTime;
+        }
+
+        /**
+         * Get the stalls as an exception carrying the sampled stack, for logging or
+         * crash reporting.
+         */
+        public ThreadUtils.UiThreadBlockedException toException() {
+            final ThreadUtils.UiThreadBlockedException e =
+                    new ThreadUtils.UiThreadBlockedException(
+                            "UI thread stalled " + mCount + " times, up to " + mMaxMillis + " ms");
+            e.setStackTrace(mStack);
+            return e;
+        }
+    }
+
+    // Lookup key for a sampled stack, without copying it.
+    private static final class StackKey {
+        public StackTraceElement[] stack;
+        public int hash;
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+
+        @Override
+        public boolean equals(final Object other) {
+            return other instanceof StackKey && Arrays.equals(stack, ((StackKey) other).stack);
+        }
+    }
+
+    private final Thread mUiThread;
+    private final Handler mUiHandler;
+
+    // Guarded by 'this'.
+    private final Map<StackKey, Stall> mStalls = new HashMap<>();
+    private final StackKey mLookupKey = new StackKey();
+    private int mDroppedStalls;
+
+    private volatile Thread mThread;
+    private volatile long mThresholdMillis;
+
+    // Ping sequence numbers; the UI thread answers by copying the last one sent.
+    private volatile int mPingSent;
+    private volatile int mPingAnswered;
+    private final Runnable mPingAnswer = new Runnable() {
+        @Override
+        public void run() {
+            mPingAnswered = mPingSent;
+            final Thread thread = mThread;
+            if (thread != null) {
+                thread.interrupt();
+            }
+        }
+    };
+
+    /* package */ UiThreadWatchdog(final Thread uiThread, final Handler uiHandler) {
+        mUiThread = uiThread;
+        mUiHandler = uiHandler;
+    }
+
+    /**
+     * Start watching the UI thread, or change the threshold if already started.
+     *
+     * @param thresholdMillis Time the UI thread may take to answer a ping before it
+     *                        counts as stalled, in milliseconds.
+     */
+    public synchronized void start(final long thresholdMillis) {
+        if (thresholdMillis <= 0) {
+            throw new IllegalArgumentException("Threshold must be positive");
+        }
+        mThresholdMillis = thresholdMillis;
+        if (mThread != null) {
+            return;
+        }
+
+        final Thread thread = new Thread(THREAD_NAME) {
+            @Override
+            public void run() {
+                watch(this);
+            }
+        };
+        thread.setDaemon(true);
+        mThread = thread;
+        thread.start();
+    }
+
+    /**
+     * Stop watching the UI thread. The report is kept.
+     */
+    public synchronized void stop() {
+        final Thread thread = mThread;
+        mThread = null;
+        if (thread != null) {
+            thread.interrupt();
+        }
+    }
+
+    public boolean isRunning() {
+        return mThread != null;
+    }
+
+    /**
+     * Get a snapshot of the report, longest total stall time first.
+     */
+    public synchronized List<Stall> getStalls() {
+        final List<Stall> stalls = new ArrayList<>(mStalls.size());
+        for (final Stall stall : mStalls.values()) {
+            stalls.add(new Stall(stall));
+        }
+        Collections.sort(stalls, new Comparator<Stall>() {
+            @Override
+            public int compare(final Stall a, final Stall b) {
+                return a.mTotalMillis < b.mTotalMillis ? 1
+                     : a.mTotalMillis > b.mTotalMillis ? -1 : 0;
+            }
+        });
+        return stalls;
+    }
+
+    /**
+     * Get the number of stalls left out of the report because it was full.
+     */
+    public synchronized int getDroppedStallCount() {
+        return mDroppedStalls;
+    }
+
+    public synchronized void clearStalls() {
+        mStalls.clear();
+        mDroppedStalls = 0;
+    }
+
+    private void watch(final Thread self) {
+        final Watch watch = new Watch();
+        while (mThread == self) {
+            final long delay = watch.poll(SystemClock.uptimeMillis(), mThresholdMillis);
+            try {
+                Thread.sleep(delay);
+            } catch (final InterruptedException e) {
+                // Woken by a ping answer or by stop(); check again.
+            }
+        }
+    }
+
+    // The state of one watchdog thread. The thread passes in the time and
+    // sleeps for as long as poll() says, unless a ping answer wakes it first,
+    // so the state can be advanced with any clock.
+    /* package */ final class Watch {
+        private int mPing;
+        private long mSentAt;
+        private boolean mWaiting;
+        // Time of the next ping, while none is outstanding.
+        private long mNextPing;
+        // Stack sampled when the outstanding ping crossed the threshold, if it has.
+        private StackTraceElement[] mSample;
+
+        // Advances the watch to the specified uptime. Returns how long to wait,
+        // in milliseconds, before the next call, which is forever while the UI
+        // thread is stalled.
+        /* package */ long poll(final long now, final long threshold) {
+            if (!mWaiting) {
+                if (now < mNextPing) {
+                    return mNextPing - now;
+                }
+                mPing = mPingSent + 1;
+                mPingSent = mPing;
+                mSentAt = now;
+                mWaiting = true;
+                mUiHandler.post(mPingAnswer);
+                return threshold;
+            }
+
+            if (mPingAnswered == mPing) {
+                mWaiting = false;
+                if (mSample != null) {
+                    addStall(mSample, now - mSentAt, now);
+                    mSample = null;
+                }
+                // Wait out the rest of the period before the next ping.
+                mNextPing = mSentAt + threshold;
+                return poll(now, threshold);
+            }
+
+            if (mSample == null) {
+                final long deadline = mSentAt + threshold;
+                if (now < deadline) {
+                    return deadline - now;
+                }
+                // Stalled: sample the stack once, then wait for the ping
+                // however long it takes.
+                mSample = mUiThread.getStackTrace();
+            }
+            return Long.MAX_VALUE;
+        }
+    }
+
+    private synchronized void addStall(final StackTraceElement[] sample, final long duration,
+                                       final long end) {
+        final StackTraceElement[] stack = sample.length > MAX_FRAMES
+                ? Arrays.copyOf(sample, MAX_FRAMES) : sample;
+
+        mLookupKey.stack = stack;
+        mLookupKey.hash = Arrays.hashCode(stack);
+        Stall stall = mStalls.get(mLookupKey);
+        mLookupKey.stack = null;
+
+        if (stall == null) {
+            if (mStalls.size() >= MAX_STALLS && !evictShorterThan(duration)) {
+                mDroppedStalls++;
+                return;
+            }
+            stall = new Stall(stack);
+            final StackKey key = new StackKey();
+            key.stack = stack;
+            key.hash = stall.mHash;
+            mStalls.put(key, stall);
+            Log.w(LOGTAG, "UI thread stalled for " + duration + " ms", stall.toException());
+        }
+
+        stall.mCount++;
+        stall.mTotalMillis += duration;
+        stall.mMaxMillis = Math.max(stall.mMaxMillis, duration);
+        stall.mLastTime = end;
+    }
+
+    // Removes the entry with the least total stall time if it is shorter than
+    // the specified duration.
+    private boolean evictShorterThan(final long duration) {
+        Map.Entry<StackKey, Stall> shortest = null;
+        for (final Map.Entry<StackKey, Stall> entry : mStalls.entrySet()) {
+            if (shortest == null ||
+                    entry.getValue().mTotalMillis < shortest.getValue().mTotalMillis) {
+                shortest = entry;
+            }
+        }
+        if (shortest == null || shortest.getValue().mTotalMillis >= duration) {
+            return false;
+        }
+        mStalls.remove(shortest.getKey());
+        mDroppedStalls += shortest.getValue().mCount;
+        return true;
+    }
+}
@@ -7,7 +7,19 @@ import android.os.Looper;
 import android.support.annotation.NonNull;
 import android.support.annotation.Nullable;
 
-import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerFieldUpdater;
+import java.util.concurrent.atomic.AtomicReferenceFieldUpdater;
 
 /**
  * GeckoResult is a class that represents an asynchronous result. The result is initially pending,
@@ -27,7 +39,11 @@ import java.util.ArrayList;
  * }</pre>
  * <p>
  * To retrieve the completed value or exception, use one of the {@link #then} methods to register
- * listeners on the result. All listeners are run on the application main thread. For example, to
+ * listeners on the result. Listeners run on the {@link Executor} of the result: by default, the
+ * thread that created the result if it has a {@link Looper}, such as the application main
+ * thread, or the {@link #getBackgroundExecutor background executor} otherwise. A different
+ * executor can be passed to the {@link #GeckoResult(Executor) constructor} or to
+ * {@link #then(OnValueListener, OnExceptionListener, Executor) then()}. For example, to
  * retrieve a completed value,<pre>
  * divide(42, 2).then(new GeckoResult.OnValueListener&lt;Integer, Void&gt;() {
  *     &#64;Override
@@ -149,23 +165,201 @@ public class GeckoResult<T> {
         }
     }
 
-    private Handler mHandler;
-    private boolean mComplete;
-    private T mValue;
-    private Throwable mError;
-    private boolean mIsUncaughtError;
-    private ArrayList<Runnable> mListeners;
+    // The outcome of a completed result.
+    private static final class Completion {
+        public final Object value;
+        public final Throwable error;
+        public final boolean isUncaughtError;
+        public final boolean isCancelled;
+
+        public Completion(final Object value, final Throwable error,
+                          final boolean isUncaughtError, final boolean isCancelled) {
+            this.value = value;
+            this.error = error;
+            this.isUncaughtError = isUncaughtError;
+            this.isCancelled = isCancelled;
+        }
+    }
+
+    // A registered listener, with the executor to run it on, or null to run
+    // it on the result's executor. Listeners are their own list nodes and
+    // their own runnables, so registering one allocates nothing else. While
+    // the result is pending, the list is only extended at the head, and a
+    // node's link is set before the compare-and-set that publishes it. Once
+    // the result completes, the completing thread owns the list and relinks
+    // it in place.
+    private abstract static class Listener implements Runnable {
+        public final Executor executor;
+        public Listener next;
+
+        public Listener(final Executor executor) {
+            this.executor = executor;
+        }
+
+        protected abstract void onComplete();
+
+        // Runs this listener and the ones linked after it.
+        @Override
+        public final void run() {
+            Listener node = this;
+            while (node != null) {
+                final Listener next = node.next;
+                node.next = null;
+                node.onComplete();
+                node = next;
+            }
+        }
+    }
+
+    // Posts to the Handler of a Looper thread. Results created on the same
+    // thread share one instance.
+    private static final class LooperExecutor implements Executor {
+        private final Handler mHandler;
+
+        public LooperExecutor(final Handler handler) {
+            mHandler = handler;
+        }
+
+        @Override
+        public void execute(final Runnable runnable) {
+            mHandler.post(runnable);
+        }
+
+        public boolean isCurrentThread() {
+            return mHandler.getLooper() == Looper.myLooper();
+        }
+    }
+
+    private static final Executor sUiExecutor = new LooperExecutor(ThreadUtils.getUiHandler());
+    // Runs listeners on the completing thread. Used for internal listeners that
+    // only forward a completion, so that forwarding does not cost a thread hop.
+    private static final Executor sImmediateExecutor = new Executor() {
+        @Override
+        public void execute(final Runnable runnable) {
+            runnable.run();
+        }
+    };
+    private static final ThreadLocal<LooperExecutor> sLooperExecutor =
+            new ThreadLocal<LooperExecutor>();
+
+    private static final AtomicReferenceFieldUpdater<GeckoResult, Object> STATE =
+            AtomicReferenceFieldUpdater.newUpdater(GeckoResult.class, Object.class, "mState");
+    private static final AtomicReferenceFieldUpdater<GeckoResult, CancellationDelegate>
+            CANCELLATION_DELEGATE = AtomicReferenceFieldUpdater.newUpdater(
+                    GeckoResult.class, CancellationDelegate.class, "mCancellationDelegate");
+    private static final AtomicReferenceFieldUpdater<GeckoResult, Object> UPSTREAM =
+            AtomicReferenceFieldUpdater.newUpdater(GeckoResult.class, Object.class, "mUpstream");
+    private static final AtomicIntegerFieldUpdater<GeckoResult> DEPENDENTS =
+            AtomicIntegerFieldUpdater.newUpdater(GeckoResult.class, "mDependents");
+    private static final AtomicIntegerFieldUpdater<GeckoResult> WAITERS =
+            AtomicIntegerFieldUpdater.newUpdater(GeckoResult.class, "mWaiters");
+    private static final AtomicReferenceFieldUpdater<GeckoResult, Object> WAIT_LOCK =
+            AtomicReferenceFieldUpdater.newUpdater(GeckoResult.class, Object.class, "mWaitLock");
+
+    // Replaces the cancellation delegate once the result is cancelled.
+    private static final CancellationDelegate CANCELLED = new CancellationDelegate() {
+        @Override
+        public void onCancel() {
+        }
+    };
+
+    // Maximum number of continuations run inline within one another on a
+    // thread before falling back to posting, to bound stack depth.
+    private static final int MAX_DIRECT_DEPTH = 32;
+    private static final ThreadLocal<int[]> sDirectDepth = new ThreadLocal<int[]>() {
+        @Override
+        protected int[] initialValue() {
+            return new int[1];
+        }
+    };
+
+    private final Executor mExecutor;
+    private boolean mDirectExecution;
+    // While pending, null or the listeners registered so far, most recent
+    // first. Once complete, a Completion. All transitions are made with
+    // compare-and-set, so neither completing a result nor adding a listener
+    // ever blocks, and every listener is dispatched exactly once.
+    private volatile Object mState;
+
+    // What this result waits on, if anything: the result it was chained to
+    // with then(), the result returned by the listener once that has run, or
+    // for a combinator, an array of its inputs. Whoever takes the link out
+    // with an atomic update releases the results it names, so that each
+    // result is released once.
+    private volatile Object mUpstream;
+    // Number of results waiting on this one: results chained to it with then(),
+    // results mirroring it after their listener returned it, and combinators
+    // over it. Internal listeners that do not consume the outcome do not count.
+    // Cancelling a dependent releases it; releasing the last one cancels this
+    // result.
+    private volatile int mDependents;
+    // Number of threads blocked waiting for the result to complete.
+    private volatile int mWaiters;
+    // Monitor the waiting threads block on, created by the first of them. It is
+    // private, so code that synchronizes on the result cannot steal wakeups.
+    private volatile Object mWaitLock;
+    private volatile CancellationDelegate mCancellationDelegate;
+    private volatile Runnable mDeadline;
 
     /**
      * Construct an incomplete GeckoResult. Call {@link #complete(Object)} or
      * {@link #completeExceptionally(Throwable)} in order to fulfill the result.
+     *
+     * Listeners run on the current thread if it has a {@link Looper} installed, or
+     * on the {@link #getBackgroundExecutor shared background executor} otherwise.
      */
     public GeckoResult() {
+        this(getDefaultExecutor());
+    }
+
+    /**
+     * Construct an incomplete GeckoResult whose listeners run on the specified
+     * {@link Executor}.
+     *
+     * @param executor Executor used to invoke listeners.
+     */
+    public GeckoResult(@NonNull final Executor executor) {
+        if (executor == null) {
+            throw new IllegalArgumentException("Executor must not be null");
+        }
+        mExecutor = executor;
+    }
+
+    private static Executor getDefaultExecutor() {
         if (ThreadUtils.isOnUiThread()) {
-            mHandler = ThreadUtils.getUiHandler();
-        } else {
-            mHandler = new Handler();
+            return sUiExecutor;
+        }
+
+        final Looper looper = Looper.myLooper();
+        if (looper == null) {
+            return getBackgroundExecutor();
+        }
+
+        LooperExecutor executor = sLooperExecutor.get();
+        if (executor == null) {
+            executor = new LooperExecutor(new Handler(looper));
+            sLooperExecutor.set(executor);
         }
+        return executor;
+    }
+
+    /**
+     * Get the {@link Executor} that posts to the application main thread, for results
+     * whose listeners must run there even if the result is created on another thread.
+     *
+     * @return Main thread executor.
+     */
+    public static @NonNull Executor getUiExecutor() {
+        return sUiExecutor;
+    }
+
+    /**
+     * Get the shared {@link Executor} backed by the pool of background worker threads.
+     *
+     * @return Background executor.
+     */
+    public static @NonNull Executor getBackgroundExecutor() {
+        return ThreadUtils.getBackgroundExecutor();
     }
 
     /**
@@ -205,12 +399,222 @@ public class GeckoResult<T> {
         return result;
     }
 
+    /**
+     * Construct a result that is completed with the outcome of the specified {@link Callable},
+     * run on the specified {@link Executor}. The callable completes the result directly on
+     * the executor thread; it is not run if the result is cancelled first.
+     *
+     * @param callable Callable computing the value.
+     * @param executor Executor used to run the callable, such as a worker pool.
+     * @param <U> Type for the result.
+     * @return A new {@link GeckoResult} for the outcome of the callable.
+     */
+    public static @NonNull <U> GeckoResult<U> fromCallable(@NonNull final Callable<U> callable,
+                                                           @NonNull final Executor executor) {
+        final GeckoResult<U> result = new GeckoResult<>();
+        executor.execute(new Runnable() {
+            @Override
+            public void run() {
+                if (result.getCompletion() != null) {
+                    return;
+                }
+                try {
+                    result.tryComplete(callable.call(), null, false);
+                } catch (final Throwable e) {
+                    result.tryComplete(null, e, false);
+                }
+            }
+        });
+        return result;
+    }
+
+    /**
+     * Construct a result that completes once all the specified results have completed with
+     * a value, with the list of their values in the same order. If any of the results
+     * completes exceptionally, the returned result is completed with that exception as
+     * soon as it happens.
+     *
+     * @param results Results to wait for.
+     * @param <U> Type of the values.
+     * @return A new {@link GeckoResult} for the list of values.
+     */
+    public static @NonNull <U> GeckoResult<List<U>> allOf(
+            @NonNull final List<? extends GeckoResult<? extends U>> results) {
+        final GeckoResult<List<U>> all = new GeckoResult<>();
+        final int count = results.size();
+        if (count == 0) {
+            all.complete(Collections.<U>emptyList());
+            return all;
+        }
+
+        final Object[] values = new Object[count];
+        final AtomicInteger remaining = new AtomicInteger(count);
+        all.linkUpstream(results);
+        for (int i = 0; i < count; i++) {
+            final GeckoResult<? extends U> result = results.get(i);
+            final int index = i;
+            result.then(new Listener(sImmediateExecutor) {
+                @SuppressWarnings("unchecked")
+                @Override
+                protected void onComplete() {
+                    final Completion completion = result.getCompletion();
+                    if (completion.error != null) {
+                        all.tryComplete(null, completion.error, completion.isUncaughtError);
+                        return;
+                    }
+                    values[index] = completion.value;
+                    // The decrement publishes the value to whichever listener
+                    // sees the count reach zero.
+                    if (remaining.decrementAndGet() == 0) {
+                        all.tryComplete(Arrays.asList((U[])values), null, false);
+                    }
+                }
+            });
+        }
+        return all;
+    }
+
+    /**
+     * Construct a result that completes with the value of the first of the specified
+     * results to complete with a value. If all of them complete exceptionally, the
+     * returned result is completed with the exception of the last one.
+     *
+     * @param results Results to wait for. Must not be empty.
+     * @param <U> Type of the value.
+     * @return A new {@link GeckoResult} for the first value.
+     */
+    public static @NonNull <U> GeckoResult<U> anyOf(
+            @NonNull final List<? extends GeckoResult<? extends U>> results) {
+        final int count = results.size();
+        if (count == 0) {
+            throw new IllegalArgumentException("At least one result is required");
+        }
+
+        final GeckoResult<U> any = new GeckoResult<>();
+        final AtomicInteger remaining = new AtomicInteger(count);
+        any.linkUpstream(results);
+        for (int i = 0; i < count; i++) {
+            final GeckoResult<? extends U> result = results.get(i);
+            result.then(new Listener(sImmediateExecutor) {
+                @Override
+                protected void onComplete() {
+                    final Completion completion = result.getCompletion();
+                    if (completion.error == null) {
+                        any.tryComplete(completion.value, null, false);
+                    } else if (remaining.decrementAndGet() == 0) {
+                        any.tryComplete(null, completion.error, completion.isUncaughtError);
+                    }
+                }
+            });
+        }
+        return any;
+    }
+
+    /**
+     * Construct a result that completes like the first of the specified results to
+     * complete, whether with a value or an exception.
+     *
+     * @param results Results to wait for. Must not be empty.
+     * @param <U> Type of the value.
+     * @return A new {@link GeckoResult} mirroring the first result to complete.
+     */
+    public static @NonNull <U> GeckoResult<U> race(
+            @NonNull final List<? extends GeckoResult<? extends U>> results) {
+        return race(results, -1);
+    }
+
+    /**
+     * Construct a result that completes like the first of the specified results to
+     * complete, or exceptionally with a {@link TimeoutException} if none of them has
+     * completed within the timeout. Timeouts are scheduled on the shared background
+     * thread and removed as soon as the race is decided.
+     *
+     * @param results Results to wait for. Must not be empty.
+     * @param timeoutMillis Timeout in milliseconds, or a negative value for no timeout.
+     * @param <U> Type of the value.
+     * @return A new {@link GeckoResult} mirroring the first result to complete.
+     */
+    public static @NonNull <U> GeckoResult<U> race(
+            @NonNull final List<? extends GeckoResult<? extends U>> results,
+            final long timeoutMillis) {
+        final int count = results.size();
+        if (count == 0) {
+            throw new IllegalArgumentException("At least one result is required");
+        }
+
+        final GeckoResult<U> race = new GeckoResult<>();
+        race.linkUpstream(results);
+        if (timeoutMillis >= 0) {
+            race.setDeadline(timeoutMillis);
+        }
+
+        for (int i = 0; i < count; i++) {
+            final GeckoResult<? extends U> result = results.get(i);
+            result.then(new Listener(sImmediateExecutor) {
+                @Override
+                protected void onComplete() {
+                    final Completion completion = result.getCompletion();
+                    race.tryComplete(completion.value, completion.error,
+                                     completion.isUncaughtError);
+                }
+            });
+        }
+        return race;
+    }
+
+    /**
+     * Enable or disable direct execution for this result and the results chained to
+     * it with {@link #then} afterwards. With direct execution, listeners run inline,
+     * instead of in a future {@link Looper} iteration, when they are ready to run and
+     * the calling thread is the thread they would be invoked on. Inline calls nest up
+     * to a fixed depth, past which listeners are posted as usual.
+     *
+     * @param enabled True to enable direct execution.
+     * @return This result.
+     */
+    public @NonNull GeckoResult<T> setDirectExecutionEnabled(final boolean enabled) {
+        mDirectExecution = enabled;
+        return this;
+    }
+
+    /**
+     * Get whether direct execution is enabled.
+     *
+     * @return True if direct execution is enabled.
+     * @see #setDirectExecutionEnabled
+     */
+    public boolean isDirectExecutionEnabled() {
+        return mDirectExecution;
+    }
+
+    private Completion getCompletion() {
+        final Object state = mState;
+        return state instanceof Completion ? (Completion)state : null;
+    }
+
+    // Number of listeners registered while the result is pending, including
+    // internal ones; 0 once it is complete. Used by tests.
+    /* package */ int getPendingListenerCount() {
+        final Object state = mState;
+        if (state instanceof Completion) {
+            return 0;
+        }
+        int count = 0;
+        for (Listener node = (Listener)state; node != null; node = node.next) {
+            count++;
+        }
+        return count;
+    }
+
     @Override
-    public synchronized int hashCode() {
+    public int hashCode() {
+        final Completion completion = getCompletion();
         int result = 17;
-        result = 31 * result + (mComplete ? 1 : 0);
-        result = 31 * result + (mValue != null ? mValue.hashCode() : 0);
-        result = 31 * result + (mError != null ? mError.hashCode() : 0);
+        result = 31 * result + (completion != null ? 1 : 0);
+        if (completion != null) {
+            result = 31 * result + (completion.value != null ? completion.value.hashCode() : 0);
+            result = 31 * result + (completion.error != null ? completion.error.hashCode() : 0);
+        }
         return result;
     }
 
@@ -220,12 +624,15 @@ public class GeckoResult<T> {
     }
 
     @Override
-    public synchronized boolean equals(final Object other) {
+    public boolean equals(final Object other) {
         if (other instanceof GeckoResult<?>) {
-            final GeckoResult<?> result = (GeckoResult<?>)other;
-            return result.mComplete == mComplete &&
-                    objectEquals(result.mError, mError) &&
-                    objectEquals(result.mValue, mValue);
+            final Completion completion = getCompletion();
+            final Completion otherCompletion = ((GeckoResult<?>)other).getCompletion();
+            if (completion == null || otherCompletion == null) {
+                return completion == otherCompletion;
+            }
+            return objectEquals(otherCompletion.error, completion.error) &&
+                    objectEquals(otherCompletion.value, completion.value);
         }
 
         return false;
@@ -257,11 +664,12 @@ public class GeckoResult<T> {
 
     /**
      * Adds listeners to be called when the {@link GeckoResult} is completed either with
-     * a value or {@link Throwable}. Listeners will be invoked on the thread where the
-     * {@link GeckoResult} was created, which must have a {@link Looper} installed.
+     * a value or {@link Throwable}. Listeners will be invoked on the executor of this
+     * result; by default, the thread where the {@link GeckoResult} was created.
      *
      * If the result is already complete when this method is called, listeners will be invoked in
-     * a future {@link Looper} iteration.
+     * a future {@link Looper} iteration, unless {@link #setDirectExecutionEnabled direct
+     * execution} is enabled.
      *
      * @param valueListener An instance of {@link OnValueListener}, called when the
      *                      {@link GeckoResult} is completed with a value.
@@ -272,85 +680,164 @@ public class GeckoResult<T> {
      */
     public @NonNull <U> GeckoResult<U> then(@Nullable final OnValueListener<T, U> valueListener,
                                             @Nullable final OnExceptionListener<U> exceptionListener) {
+        return then(valueListener, exceptionListener, null);
+    }
+
+    /**
+     * Adds listeners to be called when the {@link GeckoResult} is completed either with
+     * a value or {@link Throwable}, like {@link #then(OnValueListener, OnExceptionListener)},
+     * but invoked on the specified {@link Executor} instead of the executor of this result.
+     * The returned result also uses that executor for its own listeners.
+     *
+     * @param valueListener An instance of {@link OnValueListener}, called when the
+     *                      {@link GeckoResult} is completed with a value.
+     * @param exceptionListener An instance of {@link OnExceptionListener}, called when the
+     *                          {@link GeckoResult} is completed with an {@link Throwable}.
+     * @param executor Executor used to invoke the listeners.
+     * @param <U> Type of the new result that is returned by the listeners.
+     * @return A new {@link GeckoResult} that the listeners will complete.
+     */
+    public @NonNull <U> GeckoResult<U> then(@Nullable final OnValueListener<T, U> valueListener,
+                                            @Nullable final OnExceptionListener<U> exceptionListener,
+                                            @Nullable final Executor executor) {
         if (valueListener == null && exceptionListener == null) {
             throw new IllegalArgumentException("At least one listener should be non-null");
         }
 
-        final GeckoResult<U> result = new GeckoResult<U>();
-        then(new Runnable() {
+        final GeckoResult<U> result = executor != null ? new GeckoResult<U>(executor)
+                                                       : new GeckoResult<U>();
+        result.mDirectExecution = mDirectExecution;
+        DEPENDENTS.incrementAndGet(this);
+        result.mUpstream = this;
+        then(new Listener(executor) {
+            @SuppressWarnings("unchecked")
             @Override
-            public void run() {
+            protected void onComplete() {
+                if (result.getCompletion() != null) {
+                    // Cancelled; nobody wants the outcome anymore.
+                    return;
+                }
+
+                final Completion completion = getCompletion();
                 try {
-                    if (haveValue()) {
-                        result.completeFrom(valueListener != null ? valueListener.onValue(mValue)
-                                                                  : null);
-                    } else if (!haveError()) {
+                    if (completion == null) {
                         // Listener called without completion?
                         throw new AssertionError();
+                    } else if (completion.error == null) {
+                        result.completeFrom(valueListener != null
+                                ? valueListener.onValue((T)completion.value) : null);
                     } else if (exceptionListener != null) {
-                        result.completeFrom(exceptionListener.onException(mError));
+                        result.completeFrom(exceptionListener.onException(completion.error));
                     } else {
-                        result.mIsUncaughtError = mIsUncaughtError;
-                        result.completeExceptionally(mError);
+                        result.tryComplete(null, completion.error, completion.isUncaughtError);
                     }
                 } catch (Throwable e) {
-                    if (!result.mComplete) {
-                        result.mIsUncaughtError = true;
-                        result.completeExceptionally(e);
-                    }
+                    result.tryComplete(null, e, true);
                 }
             }
         });
         return result;
     }
 
-    private synchronized void then(@NonNull final Runnable listener) {
-        if (mComplete) {
-            dispatchLocked(listener);
-        } else {
-            if (mListeners == null) {
-                mListeners = new ArrayList<>(1);
+    // Registers an internal listener. Callers that wait on the outcome on
+    // behalf of another result also count themselves as a dependent.
+    private void then(@NonNull final Listener listener) {
+        for (;;) {
+            final Object state = mState;
+            if (state instanceof Completion) {
+                // Drop any link left by a failed compare-and-set.
+                listener.next = null;
+                dispatch(listener, listener.executor != null ? listener.executor : mExecutor);
+                return;
+            }
+            listener.next = (Listener)state;
+            if (STATE.compareAndSet(this, state, listener)) {
+                return;
             }
-            mListeners.add(listener);
         }
     }
 
-    private void dispatchLocked() {
-        if (!mComplete) {
-            throw new IllegalStateException("Cannot dispatch unless result is complete");
+    private void dispatch(final Listener listeners, final Completion completion) {
+        if (listeners == null && !completion.isUncaughtError) {
+            return;
         }
 
-        if (mListeners == null && !mIsUncaughtError) {
-            return;
+        // Listeners were pushed most recent first; reverse the list in place to
+        // dispatch them in the order they were added.
+        Listener node = null;
+        for (Listener rest = listeners; rest != null; ) {
+            final Listener next = rest.next;
+            rest.next = node;
+            node = rest;
+            rest = next;
         }
 
-        mHandler.post(new Runnable() {
-            @Override
-            public void run() {
-                if (mListeners != null) {
-                    for (final Runnable listener : mListeners) {
-                        listener.run();
-                    }
-                } else if (mIsUncaughtError) {
+        // Consecutive listeners that run on our executor go to it as one batch.
+        // Listeners with their own executor go straight to it, after the batch
+        // of the listeners added before them.
+        boolean dispatched = false;
+        Listener first = null;
+        Listener last = null;
+        while (node != null) {
+            final Listener next = node.next;
+            node.next = null;
+            if (node.executor != null && node.executor != mExecutor) {
+                if (first != null) {
+                    dispatch(first, mExecutor);
+                    first = last = null;
+                }
+                dispatch(node, node.executor);
+            } else if (first == null) {
+                first = last = node;
+            } else {
+                last.next = node;
+                last = node;
+            }
+            dispatched = true;
+            node = next;
+        }
+
+        if (first != null) {
+            dispatch(first, mExecutor);
+        } else if (!dispatched && completion.isUncaughtError) {
+            mExecutor.execute(new Runnable() {
+                @Override
+                public void run() {
                     // We have no listeners to forward the uncaught exception to;
                     // rethrow the exception to make it visible.
-                    throw new UncaughtException(mError);
+                    throw new UncaughtException(completion.error);
                 }
-            }
-        });
+            });
+        }
     }
 
-    private void dispatchLocked(final Runnable runnable) {
-        if (!mComplete) {
-            throw new IllegalStateException("Cannot dispatch unless result is complete");
+    // Returns the depth counter of the current thread, already incremented, if
+    // listeners may run inline; null if they must be posted.
+    private int[] enterDirect(final Executor executor) {
+        if (!mDirectExecution || !(executor instanceof LooperExecutor) ||
+                !((LooperExecutor)executor).isCurrentThread()) {
+            return null;
         }
+        final int[] depth = sDirectDepth.get();
+        if (depth[0] >= MAX_DIRECT_DEPTH) {
+            return null;
+        }
+        depth[0]++;
+        return depth;
+    }
 
-        mHandler.post(new Runnable() {
-            @Override
-            public void run() {
-                runnable.run();
+    private void dispatch(final Listener listener, final Executor executor) {
+        final int[] depth = enterDirect(executor);
+        if (depth != null) {
+            try {
+                listener.run();
+            } finally {
+                depth[0]--;
             }
-        });
+            return;
+        }
+
+        executor.execute(listener);
     }
 
     /**
@@ -364,57 +851,350 @@ public class GeckoResult<T> {
             return;
         }
 
-        other.then(new Runnable() {
+        DEPENDENTS.incrementAndGet(other);
+        other.then(new Listener(null) {
             @Override
-            public void run() {
-                if (other.haveValue()) {
-                    complete(other.mValue);
-                } else {
-                    mIsUncaughtError = other.mIsUncaughtError;
-                    completeExceptionally(other.mError);
-                }
+            protected void onComplete() {
+                final Completion completion = other.getCompletion();
+                tryComplete(completion.value, completion.error, completion.isUncaughtError);
             }
         });
+
+        // Link only after counting as a dependent of the other result. If we
+        // were cancelled before the link was visible, cancel() released the
+        // previous link instead, so release this one here unless cancel() has
+        // taken it in the meantime.
+        UPSTREAM.set(this, other);
+        final Completion completion = getCompletion();
+        if (completion != null && completion.isCancelled &&
+                UPSTREAM.compareAndSet(this, other, null)) {
+            other.releaseDependent(completion.error);
+        }
+    }
+
+    // Links a combinator to its inputs before it is returned.
+    private void linkUpstream(final List<? extends GeckoResult<?>> results) {
+        final GeckoResult<?>[] upstream = results.toArray(new GeckoResult<?>[results.size()]);
+        for (final GeckoResult<?> result : upstream) {
+            DEPENDENTS.incrementAndGet(result);
+        }
+        mUpstream = upstream;
+    }
+
+    // Gives up one dependent's claim on this result, and cancels the result if
+    // nobody else is waiting on it.
+    private void releaseDependent(final Throwable reason) {
+        if (DEPENDENTS.decrementAndGet(this) == 0) {
+            cancel(reason);
+        }
+    }
+
+    private static void release(final Object upstream, final Throwable reason) {
+        if (upstream instanceof GeckoResult<?>) {
+            ((GeckoResult<?>)upstream).releaseDependent(reason);
+        } else if (upstream != null) {
+            for (final GeckoResult<?> result : (GeckoResult<?>[])upstream) {
+                result.releaseDependent(reason);
+            }
+        }
+    }
+
+    // Atomically completes the result and dispatches the listeners registered
+    // so far. Returns false if the result was already complete.
+    private boolean tryComplete(final Object value, final Throwable error,
+                                final boolean isUncaughtError) {
+        return tryComplete(new Completion(value, error, isUncaughtError, false));
+    }
+
+    private boolean tryComplete(final Completion completion) {
+        for (;;) {
+            final Object state = mState;
+            if (state instanceof Completion) {
+                return false;
+            }
+            if (STATE.compareAndSet(this, state, completion)) {
+                if (mWaiters != 0) {
+                    // Waiters create the lock before counting themselves.
+                    final Object lock = mWaitLock;
+                    synchronized (lock) {
+                        lock.notifyAll();
+                    }
+                }
+                final Runnable deadline = mDeadline;
+                if (deadline != null) {
+                    mDeadline = null;
+                    ThreadUtils.removeCallbacksFromBackgroundThread(deadline);
+                }
+                dispatch((Listener)state, completion);
+                return true;
+            }
+        }
+    }
+
+    private void completeWith(final Object value, final Throwable error,
+                              final boolean isUncaughtError) {
+        if (tryComplete(value, error, isUncaughtError)) {
+            return;
+        }
+        final Completion completion = getCompletion();
+        if (completion == null || !completion.isCancelled) {
+            throw new IllegalStateException("result is already complete");
+        }
+        // Producers may still complete a cancelled result; the outcome is dropped.
     }
 
     /**
-     * Complete the result with the specified value. IllegalStateException is thrown
-     * if the result is already complete.
+     * Cancel the result. If it is still pending, it is completed exceptionally with a
+     * {@link CancellationException}, its {@link CancellationDelegate} is called, and
+     * cancellation propagates up the chain: the result this one was chained to with
+     * {@link #then}, the result its listener returned, or the inputs of a combinator
+     * such as {@link #allOf}, are cancelled in turn once no other result is waiting
+     * for them.
      *
-     * @param value The value used to complete the result.
-     * @throws IllegalStateException If the result is already completed.
+     * @return True if this call cancelled the result, false if it was already complete.
      */
-    public synchronized void complete(final T value) {
-        if (mComplete) {
-            throw new IllegalStateException("result is already complete");
+    public boolean cancel() {
+        return cancel(new CancellationException());
+    }
+
+    private boolean cancel(final Throwable reason) {
+        if (!tryComplete(new Completion(null, reason, false, true))) {
+            return false;
+        }
+
+        final CancellationDelegate delegate =
+                CANCELLATION_DELEGATE.getAndSet(this, CANCELLED);
+        if (delegate != null) {
+            delegate.onCancel();
+        }
+
+        release(UPSTREAM.getAndSet(this, null), reason);
+        return true;
+    }
+
+    // Waits for the result to complete, without going through any executor or
+    // registering a listener. Waiters block on the wait lock, which the
+    // completing thread only takes if there are any.
+    private Completion await(final long timeout, final TimeUnit unit)
+            throws InterruptedException, TimeoutException {
+        if (ThreadUtils.isOnUiThread()) {
+            throw new IllegalThreadStateException("Cannot wait for a result on the UI thread");
+        }
+
+        Completion completion = getCompletion();
+        if (completion != null) {
+            return completion;
+        }
+
+        Object lock = mWaitLock;
+        if (lock == null) {
+            WAIT_LOCK.compareAndSet(this, null, new Object());
+            lock = mWaitLock;
+        }
+
+        final long timeoutNanos = unit.toNanos(timeout);
+        final long start = System.nanoTime();
+        WAITERS.incrementAndGet(this);
+        try {
+            synchronized (lock) {
+                for (;;) {
+                    // Checked after announcing the wait, so that a completion
+                    // either is seen here or sees the waiter.
+                    completion = getCompletion();
+                    if (completion != null) {
+                        return completion;
+                    }
+                    final long remaining = timeoutNanos - (System.nanoTime() - start);
+                    if (remaining <= 0) {
+                        throw new TimeoutException();
+                    }
+                    TimeUnit.NANOSECONDS.timedWait(lock, remaining);
+                }
+            }
+        } finally {
+            WAITERS.decrementAndGet(this);
+        }
+    }
+
+    // Gets the value of a completion the way Future.get() would.
+    @SuppressWarnings("unchecked")
+    private static <T> T getValue(final Completion completion) throws ExecutionException {
+        if (completion.isCancelled || completion.error instanceof CancellationException) {
+            if (completion.error instanceof CancellationException) {
+                throw (CancellationException)completion.error;
+            }
+            // Cancelled by a deadline.
+            final CancellationException e = new CancellationException("Result was cancelled");
+            e.initCause(completion.error);
+            throw e;
         }
+        if (completion.error != null) {
+            throw new ExecutionException(completion.error);
+        }
+        return (T)completion.value;
+    }
+
+    /**
+     * Wait for the result to complete and get its value, like {@link Future#get}. Must not
+     * be called on the UI thread, and should not be called on a thread the producer of the
+     * result depends on.
+     *
+     * @param timeoutMillis Maximum time to wait, in milliseconds.
+     * @return The value of the result.
+     * @throws ExecutionException If the result was completed exceptionally; the exception
+     *                            is the cause.
+     * @throws CancellationException If the result was cancelled. The cause is the
+     *                               {@link TimeoutException} if a deadline cancelled it.
+     * @throws InterruptedException If the thread was interrupted while waiting.
+     * @throws TimeoutException If the result did not complete in time.
+     * @throws IllegalThreadStateException If called on the UI thread.
+     */
+    public @Nullable T poll(final long timeoutMillis)
+            throws ExecutionException, InterruptedException, TimeoutException {
+        return getValue(await(timeoutMillis, TimeUnit.MILLISECONDS));
+    }
+
+    /**
+     * Get a {@link Future} view of this result, for code that works with
+     * {@link java.util.concurrent} types. The view waits on the result directly, like
+     * {@link #poll}, and cancelling it cancels the result.
+     *
+     * @return A {@link Future} for this result.
+     */
+    public @NonNull Future<T> toFuture() {
+        return new Future<T>() {
+            @Override
+            public boolean cancel(final boolean mayInterruptIfRunning) {
+                return GeckoResult.this.cancel();
+            }
+
+            @Override
+            public boolean isCancelled() {
+                return GeckoResult.this.isCancelled();
+            }
+
+            @Override
+            public boolean isDone() {
+                return getCompletion() != null;
+            }
+
+            @Override
+            public T get() throws InterruptedException, ExecutionException {
+                try {
+                    return get(Long.MAX_VALUE, TimeUnit.NANOSECONDS);
+                } catch (final TimeoutException e) {
+                    throw new AssertionError(e);
+                }
+            }
+
+            @Override
+            public T get(final long timeout, final TimeUnit unit)
+                    throws InterruptedException, ExecutionException, TimeoutException {
+                return getValue(await(timeout, unit));
+            }
+        };
+    }
+
+    /**
+     * Get whether the result was cancelled, either with {@link #cancel()} or because its
+     * {@link #setDeadline deadline} passed.
+     *
+     * @return True if the result was cancelled.
+     */
+    public boolean isCancelled() {
+        final Completion completion = getCompletion();
+        return completion != null && completion.isCancelled;
+    }
+
+    /**
+     * Set the delegate called when the result is cancelled, so that the producer can
+     * stop the work that would have completed it. If the result is already cancelled,
+     * the delegate is called right away. Only one delegate may be set.
+     *
+     * @param delegate Delegate to call on cancellation.
+     * @throws IllegalStateException If a delegate was already set.
+     */
+    public void setCancellationDelegate(@NonNull final CancellationDelegate delegate) {
+        if (CANCELLATION_DELEGATE.compareAndSet(this, null, delegate)) {
+            return;
+        }
+        if (mCancellationDelegate == CANCELLED) {
+            delegate.onCancel();
+            return;
+        }
+        throw new IllegalStateException("Cancellation delegate is already set");
+    }
+
+    /**
+     * Cancel the result with a {@link TimeoutException} if it is still pending after the
+     * specified time, as {@link #cancel()} would. Deadlines are scheduled on the shared
+     * background thread and removed when the result completes. Setting a new deadline
+     * replaces the previous one.
+     *
+     * @param timeoutMillis Time from now, in milliseconds.
+     * @return This result.
+     */
+    public @NonNull GeckoResult<T> setDeadline(final long timeoutMillis) {
+        final Runnable deadline = new Runnable() {
+            @Override
+            public void run() {
+                cancel(new TimeoutException());
+            }
+        };
 
-        mValue = value;
-        mComplete = true;
+        final Runnable previous = mDeadline;
+        mDeadline = deadline;
+        if (previous != null) {
+            ThreadUtils.removeCallbacksFromBackgroundThread(previous);
+        }
+        ThreadUtils.postDelayedToBackgroundThread(deadline, timeoutMillis);
 
-        dispatchLocked();
+        if (getCompletion() != null && mDeadline == deadline) {
+            // Completed in the meantime, possibly before the deadline was visible.
+            mDeadline = null;
+            ThreadUtils.removeCallbacksFromBackgroundThread(deadline);
+        }
+        return this;
+    }
+
+    /**
+     * Complete the result with the specified value. IllegalStateException is thrown
+     * if the result is already complete, unless it was cancelled, in which case the
+     * value is dropped.
+     *
+     * @param value The value used to complete the result.
+     * @throws IllegalStateException If the result is already completed.
+     */
+    public void complete(final T value) {
+        completeWith(value, null, false);
     }
 
     /**
      * Complete the result with the specified {@link Throwable}. IllegalStateException is thrown
-     * if the result is already complete.
+     * if the result is already complete, unless it was cancelled, in which case the
+     * exception is dropped.
      *
      * @param exception The {@link Throwable} used to complete the result.
      * @throws IllegalStateException If the result is already completed.
      */
-    public synchronized void completeExceptionally(@NonNull final Throwable exception) {
-        if (mComplete) {
-            throw new IllegalStateException("result is already complete");
-        }
-
+    public void completeExceptionally(@NonNull final Throwable exception) {
         if (exception == null) {
             throw new IllegalArgumentException("Throwable must not be null");
         }
 
-        mError = exception;
-        mComplete = true;
+        completeWith(null, exception, false);
+    }
 
-        dispatchLocked();
+    /**
+     * An interface used by producers of a {@link GeckoResult} to learn that it was
+     * cancelled.
+     */
+    public interface CancellationDelegate {
+        /**
+         * Called when the {@link GeckoResult} is cancelled, on the thread that
+         * cancelled it.
+         */
+        void onCancel();
     }
 
     /**
@@ -425,7 +1205,8 @@ public class GeckoResult<T> {
     public interface OnValueListener<T, U> {
         /**
          * Called when a {@link GeckoResult} is completed with a value. Will be
-         * called on the main thread.
+         * called on the executor the listener was added with, or else on the
+         * executor of the result.
          *
          * @param value The value of the {@link GeckoResult}
          * @return Result used to complete the next result in the chain. May be null.
@@ -442,7 +1223,8 @@ public class GeckoResult<T> {
     public interface OnExceptionListener<V> {
         /**
          * Called when a {@link GeckoResult} is completed with an exception. Will be
-         * called on the main thread.
+         * called on the executor the listener was added with, or else on the
+         * executor of the result.
          *
          * @param exception Exception that completed the result.
          * @return Result used to complete the next result in the chain. May be null.
@@ -450,13 +1232,4 @@ public class GeckoResult<T> {
          */
         @Nullable GeckoResult<V> onException(@NonNull Throwable exception) throws Throwable;
     }
-
-    private boolean haveValue() {
-        return mComplete && mError == null;
-    }
-
-    private boolean haveError() {
-        return mComplete && mError != null;
-    }
 }
-
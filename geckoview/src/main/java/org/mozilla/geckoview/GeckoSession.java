@@ -27,7 +27,7 @@ public class GeckoSession {
   private ServoSurface mServo;
   private Activity mActivity;
   private String mFutureUri;
-  private boolean mServoReady = false;
+  private volatile boolean mServoReady = false;
 
   private int mWidth;
   private int mHeight;
@@ -72,6 +72,10 @@ public class GeckoSession {
     };
     public void onRedrawing(boolean redrawing) {
       Log.d(LOGTAG, "ServoCallback::onRedrawing: " + redrawing);
+      // Only the start of a redraw shows the input that caused it.
+      if (redrawing) {
+        mInputLatency.onRedraw();
+      }
     };
   }
 
@@ -112,10 +116,29 @@ public class GeckoSession {
     Log.d(LOGTAG, "releaseDisplay()");
   }
 
+  private final InputLatency mInputLatency = new InputLatency();
+  /**
+   * Get the latency histograms of the input sent to this session.
+   *
+   * @return Input latency for this session.
+   */
+  public @NonNull InputLatency getInputLatency() {
+    return mInputLatency;
+  }
+
+  // Only the session's own controller can record samples.
+  private final PanZoomController.LatencyRecorder mInputLatencyRecorder =
+          new PanZoomController.LatencyRecorder() {
+    @Override
+    public void record(final int stage, final long nanos) {
+      mInputLatency.record(stage, nanos);
+    }
+  };
+
   private PanZoomController mPanZoomController;
   public PanZoomController getPanZoomController() {
     if (mPanZoomController == null) {
-      mPanZoomController = new PanZoomController(this);
+      mPanZoomController = new PanZoomController(this, mInputLatencyRecorder);
     }
     // Log.d(LOGTAG, "getPanZoomController()");
     return mPanZoomController;
@@ -539,22 +562,26 @@ public class GeckoSession {
   public void click(final int x, final int y) {
     Log.d(LOGTAG, "click()");
     if (mServoReady) {
+      mInputLatency.onInputDispatched();
       mServo.click(x, y);
     }
   }
 
     public void scrollStart(final int deltaX, final int deltaY, final int x, final int y) {
       if (mServoReady) {
+            mInputLatency.onInputDispatched();
             mServo.scrollStart(deltaX, deltaY, x, y);
         }
     }
     public void scroll(final int deltaX, final int deltaY, final int x, final int y) {
       if (mServoReady) {
+            mInputLatency.onInputDispatched();
             mServo.scroll(deltaX, deltaY, x, y);
         }
     }
     public void scrollEnd(final int deltaX, final int deltaY, final int x, final int y) {
       if (mServoReady) {
+            mInputLatency.onInputDispatched();
             mServo.scrollEnd(deltaX, deltaY, x, y);
         }
     }
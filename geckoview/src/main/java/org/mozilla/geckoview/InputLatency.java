@@ -0,0 +1,181 @@
+package org.mozilla.geckoview;
+
+import android.support.annotation.IntDef;
+import android.support.annotation.NonNull;
+
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Latency histograms for the stages input goes through on its way from the
+ * platform to the engine, obtained from {@link GeckoSession#getInputLatency()}.
+ *
+ * <ul>
+ * <li>{@link #STAGE_QUEUEING}: from the time of the MotionEvent to the time the
+ * pan-zoom controller receives it.</li>
+ * <li>{@link #STAGE_COALESCING}: from the first event of a coalesced batch (for
+ * example, the scroll events of one frame) to the time the batch is sent.</li>
+ * <li>{@link #STAGE_DISPATCH}: from the time the pan-zoom controller sends a call
+ * to the time the call into the engine returns, including any time spent queued
+ * for the input thread.</li>
+ * <li>{@link #STAGE_FIRST_REDRAW}: from the first engine input call after a redraw
+ * to the next redraw notification from the engine.</li>
+ * </ul>
+ *
+ * Recording costs a few atomic increments per sample, so it is always enabled.
+ */
+public final class InputLatency {
+  @Retention(RetentionPolicy.SOURCE)
+  @IntDef({STAGE_QUEUEING, STAGE_COALESCING, STAGE_DISPATCH, STAGE_FIRST_REDRAW})
+  public @interface Stage {}
+  public static final int STAGE_QUEUEING = 0;
+  public static final int STAGE_COALESCING = 1;
+  public static final int STAGE_DISPATCH = 2;
+  public static final int STAGE_FIRST_REDRAW = 3;
+  private static final int STAGE_COUNT = 4;
+
+  /**
+   * A histogram of latencies with power-of-two buckets: bucket 0 counts samples
+   * under one microsecond, and bucket i counts samples from 2^(i-1) up to 2^i
+   * microseconds. The last bucket also counts everything larger.
+   */
+  public static final class Histogram {
+    public static final int BUCKET_COUNT = 32;
+
+    private final AtomicLongArray mBuckets = new AtomicLongArray(BUCKET_COUNT);
+    private final AtomicLong mCount = new AtomicLong();
+    private final AtomicLong mSum = new AtomicLong();
+    private final AtomicLong mMax = new AtomicLong();
+
+    /* package */ Histogram() {
+    }
+
+    /* package */ void record(final long nanos) {
+      final long value = Math.max(0, nanos);
+      final long micros = value / 1000;
+      final int bucket = Math.min(BUCKET_COUNT - 1, 64 - Long.numberOfLeadingZeros(micros));
+      mBuckets.incrementAndGet(bucket);
+      mCount.incrementAndGet();
+      mSum.addAndGet(value);
+
+      long max = mMax.get();
+      while (value > max && !mMax.compareAndSet(max, value)) {
+        max = mMax.get();
+      }
+    }
+
+    /**
+     * Get the number of samples in a bucket.
+     *
+     * @param bucket Bucket index, from 0 to {@link #BUCKET_COUNT} - 1.
+     * @return Number of samples.
+     */
+    public long getBucket(final int bucket) {
+      return mBuckets.get(bucket);
+    }
+
+    /**
+     * Get the exclusive upper bound of a bucket.
+     *
+     * @param bucket Bucket index, from 0 to {@link #BUCKET_COUNT} - 1.
+     * @return Upper bound in microseconds.
+     */
+    public static long getBucketUpperBoundMicros(final int bucket) {
+      return 1L << bucket;
+    }
+
+    public long getCount() {
+      return mCount.get();
+    }
+
+    public long getMeanNanos() {
+      final long count = mCount.get();
+      return count == 0 ? 0 : mSum.get() / count;
+    }
+
+    public long getMaxNanos() {
+      return mMax.get();
+    }
+
+    /**
+     * Get an upper bound for a percentile, at bucket resolution.
+     *
+     * @param percentile Percentile, from 0 to 100.
+     * @return Upper bound of the bucket containing the percentile, in microseconds,
+     *         or 0 if there are no samples.
+     */
+    public long getPercentileMicros(final double percentile) {
+      final long count = mCount.get();
+      if (count == 0) {
+        return 0;
+      }
+      final long target = (long)Math.ceil(count * percentile / 100);
+      long seen = 0;
+      for (int i = 0; i < BUCKET_COUNT; i++) {
+        seen += mBuckets.get(i);
+        if (seen >= target) {
+          return getBucketUpperBoundMicros(i);
+        }
+      }
+      return getBucketUpperBoundMicros(BUCKET_COUNT - 1);
+    }
+
+    /* package */ void reset() {
+      for (int i = 0; i < BUCKET_COUNT; i++) {
+        mBuckets.set(i, 0);
+      }
+      mCount.set(0);
+      mSum.set(0);
+      mMax.set(0);
+    }
+  }
+
+  private final Histogram[] mHistograms = new Histogram[STAGE_COUNT];
+  // Time of the first engine input call since the last redraw, or 0.
+  private final AtomicLong mFirstUnpaintedInput = new AtomicLong();
+
+  /* package */ InputLatency() {
+    for (int i = 0; i < STAGE_COUNT; i++) {
+      mHistograms[i] = new Histogram();
+    }
+  }
+
+  /**
+   * Get the histogram for a stage.
+   *
+   * @param stage One of the STAGE_* constants.
+   * @return Histogram for the stage.
+   */
+  public @NonNull Histogram getHistogram(final @Stage int stage) {
+    return mHistograms[stage];
+  }
+
+  /**
+   * Clear all histograms.
+   */
+  public void reset() {
+    for (final Histogram histogram : mHistograms) {
+      histogram.reset();
+    }
+  }
+
+  // Records a sample for a stage, on behalf of the session's pan-zoom controller.
+  /* package */ void record(final @Stage int stage, final long nanos) {
+    mHistograms[stage].record(nanos);
+  }
+
+  /* package */ void onInputDispatched() {
+    if (mFirstUnpaintedInput.get() == 0) {
+      mFirstUnpaintedInput.compareAndSet(0, System.nanoTime());
+    }
+  }
+
+  /* package */ void onRedraw() {
+    final long input = mFirstUnpaintedInput.getAndSet(0);
+    if (input != 0) {
+      mHistograms[STAGE_FIRST_REDRAW].record(System.nanoTime() - input);
+    }
+  }
+}
@@ -0,0 +1,137 @@
+package org.mozilla.gecko.gfx;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+public class InputResamplerTest {
+  // Frames resample to 5 ms before the frame time.
+  private static final double LATENCY = 5;
+
+  @Test
+  public void singleSampleIsKept() {
+    final InputResampler resampler = new InputResampler();
+    assertFalse(resampler.hasSamples());
+    resampler.addSample(1000, 10, 20);
+    assertTrue(resampler.hasSamples());
+    resampler.resample(1100);
+    assertEquals(10, resampler.getX(), 0);
+    assertEquals(20, resampler.getY(), 0);
+  }
+
+  @Test
+  public void interpolatesBetweenSamples() {
+    final InputResampler resampler = new InputResampler();
+    resampler.addSample(1000, 0, 0);
+    resampler.addSample(1010, 100, -50);
+    resampler.resample(1004 + LATENCY);
+    assertEquals(40, resampler.getX(), 0.001);
+    assertEquals(-20, resampler.getY(), 0.001);
+  }
+
+  @Test
+  public void doesNotGoBackPastOlderSample() {
+    final InputResampler resampler = new InputResampler();
+    resampler.addSample(1000, 0, 0);
+    resampler.addSample(1010, 100, 0);
+    resampler.resample(990 + LATENCY);
+    assertEquals(100, resampler.getX(), 0);
+  }
+
+  @Test
+  public void sameTimestampKeepsNewestPosition() {
+    final InputResampler resampler = new InputResampler();
+    resampler.addSample(1000, 0, 0);
+    resampler.addSample(1010, 50, 0);
+    resampler.addSample(1010, 100, 0);
+    resampler.resample(1005 + LATENCY);
+    assertEquals(50, resampler.getX(), 0.001);
+  }
+
+  @Test
+  public void extrapolatesHalfTheSampleInterval() {
+    final InputResampler resampler = new InputResampler();
+    resampler.addSample(1000, 0, 0);
+    resampler.addSample(1010, 100, 0);
+    // 20 ms past the newest sample, but predictions reach at most half the
+    // interval between the samples.
+    resampler.resample(1030 + LATENCY);
+    assertEquals(150, resampler.getX(), 0.001);
+  }
+
+  @Test
+  public void extrapolatesAtMostEightMilliseconds() {
+    final InputResampler resampler = new InputResampler();
+    resampler.addSample(1000, 0, 0);
+    resampler.addSample(1020, 200, 0);
+    resampler.resample(1050 + LATENCY);
+    assertEquals(280, resampler.getX(), 0.001);
+  }
+
+  @Test
+  public void doesNotExtrapolateFromUnreliableIntervals() {
+    final InputResampler close = new InputResampler();
+    close.addSample(1000, 0, 0);
+    close.addSample(1001, 100, 0);
+    close.resample(1010 + LATENCY);
+    assertEquals(100, close.getX(), 0);
+
+    final InputResampler apart = new InputResampler();
+    apart.addSample(1000, 0, 0);
+    apart.addSample(1030, 100, 0);
+    apart.resample(1040 + LATENCY);
+    assertEquals(100, apart.getX(), 0);
+  }
+
+  @Test
+  public void resetForgetsSamples() {
+    final InputResampler resampler = new InputResampler();
+    resampler.addSample(1000, 0, 0);
+    resampler.addSample(1010, 100, 0);
+    resampler.reset();
+    assertFalse(resampler.hasSamples());
+    resampler.addSample(1020, 500, 0);
+    resampler.resample(1030 + LATENCY);
+    assertEquals(500, resampler.getX(), 0);
+  }
+
+  @Test
+  public void steadyMotionIsPredictedExactly() {
+    final InputResampler resampler = new InputResampler();
+    for (int i = 0; i < 10; i++) {
+      resampler.addSample(1000 + i * 10, i * 100, 0);
+      resampler.resample(1000 + i * 10 + 4 + LATENCY);
+    }
+    assertEquals(0, resampler.getMeanError(), 0.001);
+    assertEquals(0, resampler.getMaxError(), 0.001);
+  }
+
+  @Test
+  public void predictionErrorIsMeasuredAgainstLaterSamples() {
+    final InputResampler resampler = new InputResampler();
+    resampler.addSample(1000, 0, 0);
+    resampler.addSample(1010, 100, 0);
+    // Predicted 140 at 1014.
+    resampler.resample(1014 + LATENCY);
+    assertEquals(140, resampler.getX(), 0.001);
+
+    // The pointer stopped at 1010, so it really was at 100 then.
+    resampler.addSample(1020, 100, 0);
+    assertEquals(40, resampler.getMeanError(), 0.001);
+    assertEquals(40, resampler.getMaxError(), 0.001);
+
+    // Predicted 128 at 1034, but the pointer turned back and was at 104 then.
+    resampler.addSample(1030, 120, 0);
+    resampler.resample(1034 + LATENCY);
+    assertEquals(128, resampler.getX(), 0.001);
+    resampler.addSample(1040, 80, 0);
+    assertEquals((40 + 24) / 2.0, resampler.getMeanError(), 0.001);
+    assertEquals(40, resampler.getMaxError(), 0.001);
+
+    resampler.resetError();
+    assertEquals(0, resampler.getMeanError(), 0);
+    assertEquals(0, resampler.getMaxError(), 0);
+  }
+}
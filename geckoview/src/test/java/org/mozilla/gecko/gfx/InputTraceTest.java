@@ -0,0 +1,185 @@
+package org.mozilla.gecko.gfx;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import android.view.MotionEvent;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.shadows.ShadowLooper;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+
+@RunWith(RobolectricTestRunner.class)
+public class InputTraceTest {
+  private static final long FRAME = 16666667; // ns
+
+  private final int[] mPointerId = new int[1];
+  private final float[] mX = new float[1];
+  private final float[] mY = new float[1];
+  private final float[] mZero = new float[1];
+
+  @Before
+  public void setUp() {
+    // Anything the controllers post stays queued, so that it can be counted.
+    ShadowLooper.pauseMainLooper();
+  }
+
+  private void touch(final PanZoomController controller, final int action, final long time,
+                     final float y) {
+    mX[0] = 100;
+    mY[0] = y;
+    controller.handleMotionEvent(action, 0, time, 0, 1, mPointerId, mX, mY,
+                                 mZero, mZero, mZero, mZero);
+  }
+
+  private void history(final PanZoomController controller, final long time, final float y) {
+    mX[0] = 100;
+    mY[0] = y;
+    controller.handleTouchHistory(time, 1, mPointerId, mX, mY, mZero);
+  }
+
+  // Records a fast pan whose moves each carry a historical sample, released
+  // while still moving, followed by a few wheel scrolls.
+  private byte[] recordFlingAndScroll() throws IOException {
+    final PanZoomController controller = new PanZoomController(new RecordingSession());
+    final ByteArrayOutputStream trace = new ByteArrayOutputStream();
+    controller.startRecording(trace);
+
+    long time = 1000;
+    touch(controller, MotionEvent.ACTION_DOWN, time, 100);
+    for (int i = 1; i <= 10; i++) {
+      history(controller, time + 8, 100 + i * 40 - 20);
+      time += 16;
+      touch(controller, MotionEvent.ACTION_MOVE, time, 100 + i * 40);
+      controller.onFrame(time * 1000000L);
+    }
+    time += 8;
+    touch(controller, MotionEvent.ACTION_UP, time, 520);
+
+    time += 5000;
+    for (int i = 0; i < 5; i++) {
+      controller.handleScrollEvent(time + i * 10, 0, 50, 50, 0, 20);
+    }
+
+    controller.stopRecording();
+    return trace.toByteArray();
+  }
+
+  private static InputTraceReplayer.Result replay(final PanZoomController controller,
+                                                  final byte[] trace) throws IOException {
+    return new InputTraceReplayer(controller).replay(new ByteArrayInputStream(trace), false);
+  }
+
+  private static int getQueuedCount() {
+    return ShadowLooper.getShadowMainLooper().getScheduler().size();
+  }
+
+  @Test
+  public void replayIsDeterministic() throws IOException {
+    final byte[] trace = recordFlingAndScroll();
+
+    final RecordingSession first = new RecordingSession();
+    final RecordingSession second = new RecordingSession();
+    final InputTraceReplayer.Result firstResult = replay(new PanZoomController(first), trace);
+    final InputTraceReplayer.Result secondResult = replay(new PanZoomController(second), trace);
+
+    // 1 down, 10 moves with a historical sample each, 1 up and 5 scrolls.
+    assertEquals(27, firstResult.events);
+    assertEquals(firstResult.events, secondResult.events);
+    assertEquals(firstResult.frames, secondResult.frames);
+    assertEquals(first.scrolls, second.scrolls);
+    assertEquals(first.scrollY, second.scrollY);
+    assertEquals(first.scrollEnds, second.scrollEnds);
+
+    // The test runtime counts allocations per thread.
+    assertTrue(firstResult.allocatedBytes >= 0);
+  }
+
+  @Test
+  public void replayRunsUntilSettled() throws IOException {
+    final byte[] trace = recordFlingAndScroll();
+    final RecordingSession session = new RecordingSession();
+    final PanZoomController controller = new PanZoomController(session);
+    final int queued = getQueuedCount();
+
+    final InputTraceReplayer.Result result = replay(controller, trace);
+
+    // Both the fling and the wheel scroll came to rest, with the fling
+    // running for well over a second of frames, and nothing was left posted.
+    assertEquals(2, session.scrollEnds);
+    assertTrue(session.scrollY > 420 + 100);
+    assertTrue("Ran " + result.frames + " frames", result.frames > 60 * 5);
+    assertFalse(controller.needsFrame());
+    assertFalse(controller.isScrollIdleTimerPosted());
+    assertEquals(queued, getQueuedCount());
+  }
+
+  // Records a pan that speeds up, with a historical sample between moves.
+  private byte[] recordAcceleratingPan() throws IOException {
+    final PanZoomController controller = new PanZoomController(new RecordingSession());
+    final ByteArrayOutputStream trace = new ByteArrayOutputStream();
+    controller.startRecording(trace);
+
+    long time = 1000;
+    touch(controller, MotionEvent.ACTION_DOWN, time, 100);
+    for (int i = 1; i <= 20; i++) {
+      history(controller, time + 8, 100 + (2 * i - 1) * (2 * i - 1));
+      time += 16;
+      touch(controller, MotionEvent.ACTION_MOVE, time, 100 + 4 * i * i);
+    }
+    touch(controller, MotionEvent.ACTION_UP, time, 100 + 4 * 20 * 20);
+
+    controller.stopRecording();
+    return trace.toByteArray();
+  }
+
+  @Test
+  public void replayReportsResamplingError() throws IOException {
+    final byte[] trace = recordAcceleratingPan();
+
+    final PanZoomController resampled = new PanZoomController(new RecordingSession());
+    resampled.setResamplingEnabled(true);
+    final InputTraceReplayer.Result result = replay(resampled, trace);
+
+    // Extrapolating a pan that speeds up falls short of the real path.
+    assertTrue(result.resamplingMaxError > 0);
+    assertTrue(result.resamplingMeanError > 0);
+    assertTrue(result.resamplingMeanError <= result.resamplingMaxError);
+    assertEquals(resampled.getResamplingMaxError(), result.resamplingMaxError, 0);
+
+    // Each replay measures its own error.
+    final InputTraceReplayer.Result again = replay(resampled, trace);
+    assertEquals(result.resamplingMeanError, again.resamplingMeanError, 0);
+    assertEquals(result.resamplingMaxError, again.resamplingMaxError, 0);
+
+    final InputTraceReplayer.Result exact =
+            replay(new PanZoomController(new RecordingSession()), trace);
+    assertEquals(0, exact.resamplingMaxError, 0);
+  }
+
+  @Test
+  public void replayLeavesUnfinishedTouchToDisplay() throws IOException {
+    final PanZoomController recorder = new PanZoomController(new RecordingSession());
+    final ByteArrayOutputStream trace = new ByteArrayOutputStream();
+    recorder.startRecording(trace);
+    touch(recorder, MotionEvent.ACTION_DOWN, 1000, 100);
+    touch(recorder, MotionEvent.ACTION_MOVE, 1016, 200);
+    recorder.stopRecording();
+
+    final PanZoomController controller = new PanZoomController(new RecordingSession());
+    final int queued = getQueuedCount();
+    replay(controller, trace.toByteArray());
+
+    // The pan is still in progress, so frames are requested from the display
+    // again once the replay is over.
+    assertTrue(controller.needsFrame());
+    assertEquals(queued + 1, getQueuedCount());
+  }
+}
@@ -0,0 +1,95 @@
+package org.mozilla.gecko.gfx;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+public class KineticScrollerTest {
+  private static final float MAX_VELOCITY = 100000;
+
+  // Moves down at 1 pixel per millisecond, one sample every 8 ms.
+  private static long addSteadySamples(final KineticScroller scroller) {
+    long time = 1000;
+    for (int i = 0; i < 10; i++, time += 8) {
+      scroller.addSample(time, 0, time - 1000);
+    }
+    return time - 8;
+  }
+
+  @Test
+  public void releaseWhileMovingHasVelocity() {
+    final KineticScroller scroller = new KineticScroller();
+    final long last = addSteadySamples(scroller);
+    scroller.computeVelocity(last + 8, MAX_VELOCITY);
+    assertEquals(0, scroller.getVelocityX(), 1);
+    assertEquals(1000, scroller.getVelocityY(), 1);
+  }
+
+  @Test
+  public void releaseSampleDoesNotHideRest() {
+    final KineticScroller scroller = new KineticScroller();
+    final long last = addSteadySamples(scroller);
+
+    // The pointer rests, then the release is added as a sample at the same
+    // position before the velocity is computed. The rest is too long for a
+    // fling, but short enough for the moving samples to still fall in the
+    // velocity window.
+    final long release = last + 50;
+    scroller.addSample(release, 0, last - 1000);
+    scroller.computeVelocity(release, MAX_VELOCITY);
+    assertEquals(0, scroller.getVelocityX(), 0);
+    assertEquals(0, scroller.getVelocityY(), 0);
+    assertFalse(scroller.startFling(release * 1000000L, 1));
+  }
+
+  @Test
+  public void releaseWithoutSampleAfterRest() {
+    final KineticScroller scroller = new KineticScroller();
+    final long last = addSteadySamples(scroller);
+    scroller.computeVelocity(last + 50, MAX_VELOCITY);
+    assertEquals(0, scroller.getVelocityY(), 0);
+  }
+
+  @Test
+  public void releaseSampleWhileMoving() {
+    final KineticScroller scroller = new KineticScroller();
+    final long last = addSteadySamples(scroller);
+    scroller.addSample(last + 8, 0, last + 8 - 1000);
+    scroller.computeVelocity(last + 8, MAX_VELOCITY);
+    assertEquals(1000, scroller.getVelocityY(), 1);
+  }
+
+  @Test
+  public void velocityIsClamped() {
+    final KineticScroller scroller = new KineticScroller();
+    final long last = addSteadySamples(scroller);
+    scroller.computeVelocity(last, 500);
+    assertEquals(500, scroller.getVelocityY(), 0);
+  }
+
+  @Test
+  public void flingCoversExpectedDistance() {
+    final KineticScroller scroller = new KineticScroller();
+    final long last = addSteadySamples(scroller);
+    scroller.computeVelocity(last, MAX_VELOCITY);
+    final float velocity = scroller.getVelocityY();
+
+    final long start = last * 1000000L;
+    assertTrue(scroller.startFling(start, 1));
+    double distance = 0;
+    long frame = start;
+    while (scroller.isFlinging()) {
+      frame += 16666667;
+      assertTrue(scroller.stepFling(frame));
+      distance += scroller.getStepY();
+    }
+    assertFalse(scroller.stepFling(frame + 16666667));
+
+    // The fling stops once slower than the minimum velocity, which leaves
+    // at most that velocity divided by the friction unscrolled.
+    final double total = velocity / scroller.getFriction();
+    assertEquals(total, distance, 1 / scroller.getFriction() + 1);
+  }
+}
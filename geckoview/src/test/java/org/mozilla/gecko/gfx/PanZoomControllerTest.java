@@ -0,0 +1,457 @@
+package org.mozilla.gecko.gfx;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assume.assumeTrue;
+
+import android.os.SystemClock;
+import android.view.MotionEvent;
+import android.view.ViewConfiguration;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mozilla.geckoview.InputLatency;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.shadows.ShadowLooper;
+
+import java.lang.management.ManagementFactory;
+
+@RunWith(RobolectricTestRunner.class)
+public class PanZoomControllerTest {
+  private static final long FRAME = 16666667; // ns
+
+  private RecordingSession mSession;
+  private PanZoomController mController;
+
+  @Before
+  public void setUp() {
+    // Frames are run by the tests, not by the Choreographer.
+    ShadowLooper.pauseMainLooper();
+    mSession = new RecordingSession();
+    mController = new PanZoomController(mSession);
+  }
+
+  private static com.sun.management.ThreadMXBean getThreadBean() {
+    final java.lang.management.ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+    if (!(bean instanceof com.sun.management.ThreadMXBean)) {
+      return null;
+    }
+    final com.sun.management.ThreadMXBean threadBean = (com.sun.management.ThreadMXBean) bean;
+    return threadBean.isThreadAllocatedMemorySupported() &&
+           threadBean.isThreadAllocatedMemoryEnabled() ? threadBean : null;
+  }
+
+  // Pointer buffers for driving the controller below the MotionEvent layer.
+  private final int[] mPointerId = new int[2];
+  private final float[] mX = new float[2];
+  private final float[] mY = new float[2];
+  private final float[] mZero = new float[2];
+
+  private void touch(final int action, final long time, final float x, final float y) {
+    mPointerId[0] = 0;
+    mX[0] = x;
+    mY[0] = y;
+    mController.handleMotionEvent(action, 0, time, 0, 1, mPointerId, mX, mY,
+                                  mZero, mZero, mZero, mZero);
+  }
+
+  private void touch2(final int action, final int actionIndex, final long time,
+                      final float x0, final float y0, final float x1, final float y1) {
+    mPointerId[0] = 0;
+    mPointerId[1] = 1;
+    mX[0] = x0;
+    mY[0] = y0;
+    mX[1] = x1;
+    mY[1] = y1;
+    mController.handleMotionEvent(action, actionIndex, time, 0, 2, mPointerId, mX, mY,
+                                  mZero, mZero, mZero, mZero);
+  }
+
+  @Test
+  public void touchDispatchDoesNotAllocate() {
+    final com.sun.management.ThreadMXBean threads = getThreadBean();
+    assumeTrue("Thread allocation counting is not supported", threads != null);
+
+    // Fewer than one byte per event on average: enough slack for measuring,
+    // but not for any allocation made per event.
+    final int events = 10000;
+    final long budgetBytes = events - 1;
+
+    // MotionEvents exercise the copy into the pointer buffers. The test
+    // runtime does not report their coordinates, so the pan itself is
+    // driven through the pointer buffer entry point.
+    final long downTime = 1000;
+    final MotionEvent[] moves = new MotionEvent[events];
+    for (int i = 0; i < events; i++) {
+      moves[i] = MotionEvent.obtain(downTime, downTime + 1 + i, MotionEvent.ACTION_MOVE,
+                                    100, 100 + (i % 200), 0);
+    }
+    final MotionEvent down = MotionEvent.obtain(downTime, downTime, MotionEvent.ACTION_DOWN,
+                                                100, 100, 0);
+
+    // Warm up: let the buffers and counters reach their steady state.
+    mController.onTouchEvent(down);
+    for (int i = 0; i < 100; i++) {
+      mController.onTouchEvent(moves[i]);
+    }
+    touch(MotionEvent.ACTION_DOWN, downTime, 100, 100);
+    for (int i = 0; i < 100; i++) {
+      touch(MotionEvent.ACTION_MOVE, downTime + 1 + i, 100, 100 + i);
+    }
+    mController.onFrame(FRAME);
+
+    final long threadId = Thread.currentThread().getId();
+    final long before = threads.getThreadAllocatedBytes(threadId);
+    for (int i = 0; i < events; i++) {
+      mController.onTouchEvent(moves[i]);
+    }
+    for (int i = 0; i < events; i++) {
+      touch(MotionEvent.ACTION_MOVE, downTime + 200 + i, 100, 200 + (i % 200));
+      if (i % 2 == 1) {
+        mController.onFrame(FRAME * (i + 2));
+      }
+    }
+    final long allocated = threads.getThreadAllocatedBytes(threadId) - before;
+
+    assertTrue("Pan was not dispatched", mSession.scrolls > 0);
+    assertTrue("Touch dispatch allocated " + allocated + " bytes for " + events + " events",
+               allocated <= budgetBytes);
+
+    down.recycle();
+    for (final MotionEvent move : moves) {
+      move.recycle();
+    }
+  }
+
+  @Test
+  public void subPixelScrollsAddUp() {
+    // Wheel deltas well below a pixel, one frame per event, in both
+    // directions on each axis.
+    final int events = 3000;
+    long time = 1000;
+    for (int i = 0; i < events; i++) {
+      mController.handleScrollEvent(time++, 0, 50, 50, 0.3f, -0.3f);
+      mController.onFrame(FRAME * i);
+    }
+    assertEquals(events * 0.3, mSession.scrollX, 1);
+    assertEquals(events * -0.3, mSession.scrollY, 1);
+
+    // Turning around within the same gesture gives back exactly what was
+    // scrolled, instead of losing a fraction on every call.
+    final long scrolledX = mSession.scrollX;
+    final long scrolledY = mSession.scrollY;
+    for (int i = 0; i < events; i++) {
+      mController.handleScrollEvent(time++, 0, 50, 50, -0.3f, 0.3f);
+      mController.onFrame(FRAME * (events + i));
+    }
+    assertEquals(scrolledX - events * 0.3, mSession.scrollX, 1);
+    assertEquals(scrolledY + events * 0.3, mSession.scrollY, 1);
+  }
+
+  @Test
+  public void subPixelPanMovesAddUp() {
+    final int events = 2000;
+    long time = 1000;
+    touch(MotionEvent.ACTION_DOWN, time, 100, 100);
+
+    // Leave the touch slop in one move, then creep on in tenths of a pixel.
+    float y = 200;
+    touch(MotionEvent.ACTION_MOVE, ++time, 100, y);
+    mController.onFrame(FRAME);
+    for (int i = 0; i < events; i++) {
+      y += 0.1f;
+      touch(MotionEvent.ACTION_MOVE, ++time, 100, y);
+      mController.onFrame(FRAME * (i + 2));
+    }
+    assertEquals(y - 100, mSession.scrollY, 1);
+
+    for (int i = 0; i < events; i++) {
+      y -= 0.1f;
+      touch(MotionEvent.ACTION_MOVE, ++time, 100, y);
+      mController.onFrame(FRAME * (events + i + 2));
+    }
+    assertEquals(y - 100, mSession.scrollY, 1);
+    assertEquals(0, mSession.scrollX);
+  }
+
+  // The idle timer is driven with explicit times below; the posted runnable
+  // never runs, since the main looper is paused.
+
+  @Test
+  public void scrollEndsWhenIdle() {
+    mController.handleScrollEvent(1000, 0, 50, 50, 0, 10);
+    mController.onFrame(FRAME);
+    assertTrue(mController.isScrollIdleTimerPosted());
+
+    mController.onScrollIdleTimer(1149);
+    assertEquals(0, mSession.scrollEnds);
+    assertTrue("Timer was not re-posted", mController.isScrollIdleTimerPosted());
+
+    mController.onScrollIdleTimer(1150);
+    assertEquals(1, mSession.scrollEnds);
+    assertFalse(mController.isScrollIdleTimerPosted());
+    assertFalse(mController.needsFrame());
+  }
+
+  @Test
+  public void scrollEventRearmsIdleTimer() {
+    mController.handleScrollEvent(1000, 0, 50, 50, 0, 10);
+    mController.onFrame(FRAME);
+    mController.handleScrollEvent(1100, 0, 50, 50, 0, 10);
+    mController.onFrame(FRAME * 2);
+
+    // The timer posted for the first event fires, and waits out the rest
+    // of the deadline moved by the second one.
+    mController.onScrollIdleTimer(1150);
+    assertEquals(0, mSession.scrollEnds);
+    assertTrue(mController.isScrollIdleTimerPosted());
+
+    mController.onScrollIdleTimer(1250);
+    assertEquals(1, mSession.scrollEnds);
+    assertEquals(20, mSession.scrollY);
+  }
+
+  @Test
+  public void touchCancelsIdleTimer() {
+    mController.handleScrollEvent(1000, 0, 50, 50, 0, 10);
+    mController.onFrame(FRAME);
+
+    // A touch ends the scroll gesture and takes its timer with it.
+    touch(MotionEvent.ACTION_DOWN, 1050, 100, 100);
+    assertEquals(1, mSession.scrollEnds);
+    assertFalse(mController.isScrollIdleTimerPosted());
+
+    // A timer that was already due does nothing.
+    mController.onScrollIdleTimer(1150);
+    assertEquals(1, mSession.scrollEnds);
+    assertFalse(mController.isScrollIdleTimerPosted());
+  }
+
+  @Test
+  public void restedPanDoesNotFling() {
+    long time = 1000;
+    touch(MotionEvent.ACTION_DOWN, time, 100, 100);
+    for (int i = 1; i <= 20; i++) {
+      time += 8;
+      touch(MotionEvent.ACTION_MOVE, time, 100, 100 + i * 10);
+      mController.onFrame(FRAME * i);
+    }
+
+    // Rest for a few frames before lifting the finger.
+    time += 50;
+    touch(MotionEvent.ACTION_UP, time, 100, 300);
+    assertEquals(1, mSession.scrollEnds);
+    assertFalse(mController.needsFrame());
+  }
+
+  @Test
+  public void movingReleaseFlings() {
+    long time = 1000;
+    touch(MotionEvent.ACTION_DOWN, time, 100, 100);
+    for (int i = 1; i <= 20; i++) {
+      time += 8;
+      touch(MotionEvent.ACTION_MOVE, time, 100, 100 + i * 10);
+      mController.onFrame(FRAME * i);
+    }
+
+    time += 8;
+    touch(MotionEvent.ACTION_UP, time, 100, 310);
+    assertEquals(0, mSession.scrollEnds);
+    assertTrue(mController.needsFrame());
+  }
+
+  @Test
+  public void tapClicksOnRelease() {
+    touch(MotionEvent.ACTION_DOWN, 1000, 100, 100);
+    touch(MotionEvent.ACTION_MOVE, 1010, 102, 101);
+    touch(MotionEvent.ACTION_UP, 1050, 102, 101);
+
+    assertEquals(1, mSession.clicks);
+    assertEquals(102, mSession.lastX);
+    assertEquals(101, mSession.lastY);
+    assertEquals(0, mSession.scrollStarts);
+    assertFalse(mController.needsFrame());
+  }
+
+  @Test
+  public void dragIsNotTap() {
+    touch(MotionEvent.ACTION_DOWN, 1000, 100, 100);
+    touch(MotionEvent.ACTION_MOVE, 1010, 100, 200);
+    touch(MotionEvent.ACTION_MOVE, 1020, 100, 150);
+    mController.onFrame(FRAME);
+    touch(MotionEvent.ACTION_UP, 1100, 100, 150);
+
+    assertEquals(0, mSession.clicks);
+    assertEquals(1, mSession.scrollStarts);
+  }
+
+  @Test
+  public void longPressIsNotTap() {
+    final long timeout = ViewConfiguration.getLongPressTimeout();
+    touch(MotionEvent.ACTION_DOWN, 1000, 100, 100);
+    touch(MotionEvent.ACTION_MOVE, 1000 + timeout + 1, 101, 100);
+    touch(MotionEvent.ACTION_UP, 1000 + timeout + 2, 101, 100);
+    assertEquals(0, mSession.clicks);
+
+    // Even without a move to notice the timeout on.
+    touch(MotionEvent.ACTION_DOWN, 5000, 100, 100);
+    touch(MotionEvent.ACTION_UP, 5000 + timeout + 1, 100, 100);
+    assertEquals(0, mSession.clicks);
+  }
+
+  @Test
+  public void secondPointerIsNotTap() {
+    touch(MotionEvent.ACTION_DOWN, 1000, 100, 100);
+    touch2(MotionEvent.ACTION_POINTER_DOWN, 1, 1010, 100, 100, 200, 200);
+    assertTrue(mController.needsFrame());
+    touch2(MotionEvent.ACTION_POINTER_UP, 1, 1020, 100, 100, 200, 200);
+    touch(MotionEvent.ACTION_UP, 1030, 100, 100);
+
+    assertEquals(0, mSession.clicks);
+    assertEquals(0, mSession.scrollStarts);
+    assertFalse(mController.needsFrame());
+  }
+
+  @Test
+  public void pinchDoesNotPan() {
+    touch(MotionEvent.ACTION_DOWN, 1000, 100, 100);
+    touch2(MotionEvent.ACTION_POINTER_DOWN, 1, 1010, 100, 100, 200, 200);
+    for (int i = 1; i <= 10; i++) {
+      touch2(MotionEvent.ACTION_MOVE, 0, 1010 + i * 8, 100, 100 + i * 20, 200, 200 + i * 20);
+      mController.onFrame(FRAME * i);
+    }
+    touch2(MotionEvent.ACTION_POINTER_UP, 1, 1100, 100, 300, 200, 400);
+    touch(MotionEvent.ACTION_MOVE, 1108, 100, 400);
+    mController.onFrame(FRAME * 11);
+    touch(MotionEvent.ACTION_UP, 1116, 100, 400);
+
+    assertEquals(0, mSession.clicks);
+    assertEquals(0, mSession.scrollStarts);
+    assertFalse(mController.needsFrame());
+  }
+
+  @Test
+  public void wheelIsIgnoredWhilePinching() {
+    touch(MotionEvent.ACTION_DOWN, 1000, 100, 100);
+    touch2(MotionEvent.ACTION_POINTER_DOWN, 1, 1010, 100, 100, 200, 200);
+    assertFalse(mController.handleScrollEvent(1020, 0, 50, 50, 0, 10));
+    mController.onFrame(FRAME);
+    assertFalse(mController.isScrollIdleTimerPosted());
+    touch2(MotionEvent.ACTION_POINTER_UP, 1, 1030, 100, 100, 200, 200);
+    touch(MotionEvent.ACTION_UP, 1040, 100, 100);
+
+    assertEquals(0, mSession.scrollStarts);
+    assertEquals(0, mSession.scrollEnds);
+    assertFalse(mController.needsFrame());
+
+    // Once the pinch is over, the wheel scrolls again.
+    assertTrue(mController.handleScrollEvent(1050, 0, 50, 50, 0, 10));
+    mController.onFrame(FRAME * 2);
+    mController.onScrollIdleTimer(1200);
+    assertEquals(1, mSession.scrollStarts);
+    assertEquals(1, mSession.scrollEnds);
+  }
+
+  @Test
+  public void sessionControllerRecordsLatency() {
+    mController = mSession.getPanZoomController();
+    final InputLatency latency = mSession.getInputLatency();
+
+    final long now = SystemClock.uptimeMillis();
+    touch(MotionEvent.ACTION_DOWN, now - 5, 100, 100);
+    touch(MotionEvent.ACTION_UP, now - 5, 100, 100);
+
+    final InputLatency.Histogram queueing = latency.getHistogram(InputLatency.STAGE_QUEUEING);
+    assertEquals(2, queueing.getCount());
+    // Measured against the uptime clock the event times are based on.
+    assertTrue(queueing.getMeanNanos() >= 5000000L);
+    assertTrue(queueing.getMeanNanos() < 1000000000L);
+    assertEquals(1, latency.getHistogram(InputLatency.STAGE_DISPATCH).getCount());
+
+    // Replayed events are not queued by the platform.
+    mController.setManualFrames(true);
+    touch(MotionEvent.ACTION_DOWN, 1000, 100, 100);
+    mController.setManualFrames(false);
+    assertEquals(2, queueing.getCount());
+  }
+
+  @Test
+  public void controllerWithoutSessionLatencyRecordsNothing() {
+    touch(MotionEvent.ACTION_DOWN, 1000, 100, 100);
+    touch(MotionEvent.ACTION_UP, 1010, 100, 100);
+
+    assertEquals(1, mSession.clicks);
+    final InputLatency latency = mSession.getInputLatency();
+    assertEquals(0, latency.getHistogram(InputLatency.STAGE_QUEUEING).getCount());
+    assertEquals(0, latency.getHistogram(InputLatency.STAGE_DISPATCH).getCount());
+  }
+
+  @Test
+  public void touchStoppingFlingIsNotTap() {
+    long time = 1000;
+    touch(MotionEvent.ACTION_DOWN, time, 100, 100);
+    for (int i = 1; i <= 20; i++) {
+      time += 8;
+      touch(MotionEvent.ACTION_MOVE, time, 100, 100 + i * 10);
+      mController.onFrame(FRAME * i);
+    }
+    time += 8;
+    touch(MotionEvent.ACTION_UP, time, 100, 310);
+    assertTrue(mController.needsFrame());
+
+    touch(MotionEvent.ACTION_DOWN, time + 50, 100, 100);
+    touch(MotionEvent.ACTION_UP, time + 60, 100, 100);
+    assertEquals(0, mSession.clicks);
+    assertEquals(1, mSession.scrollEnds);
+    assertFalse(mController.needsFrame());
+  }
+
+  private void mouse(final int action, final long time, final float x, final float y,
+                     final int buttons) {
+    mController.handleMouseEvent(action, time, 0, x, y, buttons);
+  }
+
+  @Test
+  public void mouseClickClicksOnRelease() {
+    mouse(MotionEvent.ACTION_HOVER_MOVE, 1000, 90, 90, 0);
+    mouse(MotionEvent.ACTION_DOWN, 1010, 100, 100, MotionEvent.BUTTON_PRIMARY);
+    mouse(MotionEvent.ACTION_MOVE, 1020, 101, 101, MotionEvent.BUTTON_PRIMARY);
+    assertEquals(0, mSession.clicks);
+    mouse(MotionEvent.ACTION_UP, 1030, 101, 101, 0);
+
+    assertEquals(1, mSession.clicks);
+    assertEquals(101, mSession.lastX);
+    assertEquals(101, mSession.lastY);
+    assertFalse(mController.needsFrame());
+  }
+
+  @Test
+  public void mouseDragIsNotClick() {
+    mouse(MotionEvent.ACTION_DOWN, 1000, 100, 100, MotionEvent.BUTTON_PRIMARY);
+    mouse(MotionEvent.ACTION_MOVE, 1010, 100, 200, MotionEvent.BUTTON_PRIMARY);
+    // Coming back to where it started still makes it a drag.
+    mouse(MotionEvent.ACTION_MOVE, 1020, 100, 100, MotionEvent.BUTTON_PRIMARY);
+    mouse(MotionEvent.ACTION_UP, 1030, 100, 100, 0);
+    assertEquals(0, mSession.clicks);
+
+    // Released outside the slop without a move in between.
+    mouse(MotionEvent.ACTION_DOWN, 2000, 100, 100, MotionEvent.BUTTON_PRIMARY);
+    mouse(MotionEvent.ACTION_UP, 2010, 300, 100, 0);
+    assertEquals(0, mSession.clicks);
+  }
+
+  @Test
+  public void mouseHoverAndOtherButtonsAreDropped() {
+    mouse(MotionEvent.ACTION_HOVER_ENTER, 1000, 100, 100, 0);
+    mouse(MotionEvent.ACTION_HOVER_MOVE, 1010, 110, 100, 0);
+    mouse(MotionEvent.ACTION_HOVER_EXIT, 1020, 120, 100, 0);
+    mouse(MotionEvent.ACTION_DOWN, 1030, 100, 100, MotionEvent.BUTTON_SECONDARY);
+    mouse(MotionEvent.ACTION_UP, 1040, 100, 100, 0);
+
+    assertEquals(0, mSession.clicks);
+    assertEquals(0, mSession.scrollStarts);
+    assertFalse(mController.needsFrame());
+  }
+}
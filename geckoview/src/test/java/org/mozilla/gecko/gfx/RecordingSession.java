@@ -0,0 +1,51 @@
+package org.mozilla.gecko.gfx;
+
+import org.mozilla.geckoview.GeckoSession;
+
+/**
+ * A session without an engine that counts the input calls made into it and
+ * sums up the scroll deltas. Recording does not allocate, so it can stand in
+ * for the engine in allocation tests.
+ */
+/* package */ class RecordingSession extends GeckoSession {
+  public int clicks;
+  public int scrollStarts;
+  public int scrolls;
+  public int scrollEnds;
+  public long scrollX;
+  public long scrollY;
+  public int lastX;
+  public int lastY;
+
+  @Override
+  public void click(final int x, final int y) {
+    clicks++;
+    lastX = x;
+    lastY = y;
+  }
+
+  @Override
+  public void scrollStart(final int deltaX, final int deltaY, final int x, final int y) {
+    scrollStarts++;
+    addScroll(deltaX, deltaY, x, y);
+  }
+
+  @Override
+  public void scroll(final int deltaX, final int deltaY, final int x, final int y) {
+    scrolls++;
+    addScroll(deltaX, deltaY, x, y);
+  }
+
+  @Override
+  public void scrollEnd(final int deltaX, final int deltaY, final int x, final int y) {
+    scrollEnds++;
+    addScroll(deltaX, deltaY, x, y);
+  }
+
+  private void addScroll(final int deltaX, final int deltaY, final int x, final int y) {
+    scrollX += deltaX;
+    scrollY += deltaY;
+    lastX = x;
+    lastY = y;
+  }
+}
@@ -0,0 +1,101 @@
+package org.mozilla.gecko.util;
+
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assume.assumeTrue;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.CyclicBarrier;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Contention benchmark for posting to the background executor from many threads at
+ * once. It prints the time each post takes on the posting threads and the time until
+ * every task has run, next to the same load on a fixed thread pool, whose queue takes a
+ * lock on every post. Timings taken under the test runtime are only good for comparing
+ * the variants measured side by side.
+ *
+ * The benchmark is skipped unless the unit tests are run with -Pbenchmarks.
+ */
+@RunWith(RobolectricTestRunner.class)
+public class BackgroundExecutorBenchmark {
+    private static final int POSTERS = 8;
+    private static final int POSTS = 50000;
+    private static final int ROUNDS = 3;
+
+    @Before
+    public void setUp() {
+        assumeTrue("Benchmarks are enabled with -Pbenchmarks", Boolean.getBoolean("benchmarks"));
+    }
+
+    private static void measure(final String name, final Executor executor) throws Exception {
+        for (int round = 0; round <= ROUNDS; round++) {
+            final CountDownLatch done = new CountDownLatch(POSTERS * POSTS);
+            final Runnable task = new Runnable() {
+                @Override
+                public void run() {
+                    done.countDown();
+                }
+            };
+            final CyclicBarrier start = new CyclicBarrier(POSTERS + 1);
+            final AtomicLong postNanos = new AtomicLong();
+
+            final Thread[] posters = new Thread[POSTERS];
+            for (int i = 0; i < POSTERS; i++) {
+                posters[i] = new Thread() {
+                    @Override
+                    public void run() {
+                        try {
+                            start.await();
+                        } catch (final Exception e) {
+                            throw new RuntimeException(e);
+                        }
+                        final long begin = System.nanoTime();
+                        for (int j = 0; j < POSTS; j++) {
+                            executor.execute(task);
+                        }
+                        postNanos.addAndGet(System.nanoTime() - begin);
+                    }
+                };
+                posters[i].start();
+            }
+
+            start.await();
+            final long begin = System.nanoTime();
+            assertTrue(name + " ran every task", done.await(60, TimeUnit.SECONDS));
+            final long totalNanos = System.nanoTime() - begin;
+            for (final Thread poster : posters) {
+                poster.join();
+            }
+
+            // The first round warms up.
+            if (round > 0) {
+                System.out.println(String.format(
+                        "%s, %d posting threads: %.0f ns/post, %.0f ns/task until all ran",
+                        name, POSTERS, (double) postNanos.get() / (POSTERS * POSTS),
+                        (double) totalNanos / (POSTERS * POSTS)));
+            }
+        }
+    }
+
+    @Test
+    public void concurrentPosts() throws Exception {
+        final BackgroundExecutor executor = ThreadUtils.getBackgroundExecutor();
+        measure("BackgroundExecutor", executor);
+
+        final ExecutorService pool = Executors.newFixedThreadPool(executor.getWorkerCount());
+        try {
+            measure("Fixed thread pool", pool);
+        } finally {
+            pool.shutdown();
+        }
+    }
+}
@@ -0,0 +1,176 @@
+package org.mozilla.gecko.util;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import android.os.Handler;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.Shadows;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+@RunWith(RobolectricTestRunner.class)
+public class BackgroundExecutorTest {
+    private static final int TASKS = 1000;
+
+    private static void idleTimer(final long millis) {
+        Shadows.shadowOf(ThreadUtils.getBackgroundHandler().getLooper())
+               .idle(millis, TimeUnit.MILLISECONDS);
+    }
+
+    @Test
+    public void legacyPostsRunInOrderOneAtATime() throws InterruptedException {
+        final List<Integer> order = new ArrayList<>(TASKS);
+        final AtomicInteger running = new AtomicInteger();
+        final AtomicInteger overlaps = new AtomicInteger();
+        final CountDownLatch done = new CountDownLatch(1);
+
+        for (int i = 0; i < TASKS; i++) {
+            final int index = i;
+            ThreadUtils.postToBackgroundThread(new Runnable() {
+                @Override
+                public void run() {
+                    if (running.incrementAndGet() != 1) {
+                        overlaps.incrementAndGet();
+                    }
+                    synchronized (order) {
+                        order.add(index);
+                    }
+                    running.decrementAndGet();
+                }
+            });
+        }
+        ThreadUtils.postToBackgroundThread(new Runnable() {
+            @Override
+            public void run() {
+                done.countDown();
+            }
+        });
+
+        assertTrue(done.await(10, TimeUnit.SECONDS));
+        assertEquals(0, overlaps.get());
+        synchronized (order) {
+            assertEquals(TASKS, order.size());
+            for (int i = 0; i < TASKS; i++) {
+                assertEquals(i, (int) order.get(i));
+            }
+        }
+    }
+
+    @Test
+    public void delayedLegacyPostRunsAfterEarlierPosts() throws InterruptedException {
+        final List<String> order = new ArrayList<>();
+        final CountDownLatch done = new CountDownLatch(1);
+
+        ThreadUtils.postDelayedToBackgroundThread(new Runnable() {
+            @Override
+            public void run() {
+                synchronized (order) {
+                    order.add("delayed");
+                }
+                done.countDown();
+            }
+        }, 5);
+        ThreadUtils.postToBackgroundThread(new Runnable() {
+            @Override
+            public void run() {
+                synchronized (order) {
+                    order.add("posted");
+                }
+            }
+        });
+
+        idleTimer(10);
+        assertTrue(done.await(10, TimeUnit.SECONDS));
+        synchronized (order) {
+            assertEquals("posted", order.get(0));
+            assertEquals("delayed", order.get(1));
+        }
+    }
+
+    @Test
+    public void handlerMessagesDoNotReachExecutor() throws InterruptedException {
+        // Embedders may send any message to the background handler.
+        final Handler handler = ThreadUtils.getBackgroundHandler();
+        for (int what = 0; what < 4; what++) {
+            handler.sendMessage(handler.obtainMessage(what, 0, 0, "not a task"));
+        }
+
+        final CountDownLatch done = new CountDownLatch(1);
+        ThreadUtils.postDelayedToBackgroundThread(new Runnable() {
+            @Override
+            public void run() {
+                done.countDown();
+            }
+        }, 0, BackgroundExecutor.PRIORITY_HIGH);
+
+        idleTimer(1);
+        assertTrue(done.await(10, TimeUnit.SECONDS));
+    }
+
+    @Test
+    public void removedDelayedPostDoesNotRun() throws InterruptedException {
+        final AtomicInteger runs = new AtomicInteger();
+        final Runnable removed = new Runnable() {
+            @Override
+            public void run() {
+                runs.incrementAndGet();
+            }
+        };
+        ThreadUtils.postDelayedToBackgroundThread(removed, 5);
+        ThreadUtils.postDelayedToBackgroundThread(removed, 5, BackgroundExecutor.PRIORITY_LOW);
+        ThreadUtils.removeCallbacksFromBackgroundThread(removed);
+
+        final CountDownLatch done = new CountDownLatch(1);
+        ThreadUtils.postDelayedToBackgroundThread(new Runnable() {
+            @Override
+            public void run() {
+                done.countDown();
+            }
+        }, 10);
+
+        idleTimer(20);
+        assertTrue(done.await(10, TimeUnit.SECONDS));
+        assertEquals(0, runs.get());
+    }
+
+    private static final Runnable NOTHING = new Runnable() {
+        @Override
+        public void run() {
+        }
+    };
+
+    @Test
+    public void unknownPrioritiesAreRejected() {
+        final BackgroundExecutor executor = ThreadUtils.getBackgroundExecutor();
+        final int[] priorities = new int[] { -1, 3, Integer.MAX_VALUE };
+        for (final int priority : priorities) {
+            try {
+                executor.execute(NOTHING, priority);
+                fail("Priority " + priority + " was accepted");
+            } catch (final IllegalArgumentException e) {
+                // Expected.
+            }
+            try {
+                executor.executeDelayed(NOTHING, 5, priority);
+                fail("Delayed priority " + priority + " was accepted");
+            } catch (final IllegalArgumentException e) {
+                // Expected.
+            }
+        }
+
+        // Nothing was counted.
+        for (int priority = BackgroundExecutor.PRIORITY_HIGH;
+                priority <= BackgroundExecutor.PRIORITY_LOW; priority++) {
+            assertEquals(0, executor.getQueueDepth(priority));
+        }
+    }
+}
@@ -0,0 +1,159 @@
+package org.mozilla.gecko.util;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import android.os.Handler;
+import android.os.Looper;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.shadows.ShadowLooper;
+
+import java.util.List;
+
+@RunWith(RobolectricTestRunner.class)
+public class UiThreadWatchdogTest {
+    private static final long THRESHOLD = 100; // ms
+
+    // Stands in for the UI thread, and counts the samples taken of its stack.
+    private static final class SampledThread extends Thread {
+        public StackTraceElement[] stack = stack("stalled");
+        public int samples;
+
+        @Override
+        public StackTraceElement[] getStackTrace() {
+            samples++;
+            return stack;
+        }
+    }
+
+    private static StackTraceElement[] stack(final String method) {
+        return new StackTraceElement[] {
+            new StackTraceElement("Ui", method, "Ui.java", 1),
+            new StackTraceElement("Ui", "main", "Ui.java", 2),
+        };
+    }
+
+    private SampledThread mUiThread;
+    private UiThreadWatchdog mWatchdog;
+    private UiThreadWatchdog.Watch mWatch;
+
+    @Before
+    public void setUp() {
+        // Pings are answered when the test runs the posted tasks.
+        ShadowLooper.pauseMainLooper();
+        mUiThread = new SampledThread();
+        mWatchdog = new UiThreadWatchdog(mUiThread, new Handler(Looper.getMainLooper()));
+        mWatch = mWatchdog.new Watch();
+    }
+
+    private static void answerPings() {
+        ShadowLooper.runUiThreadTasks();
+    }
+
+    // Stalls the UI thread for the specified duration, from a ping sent at the
+    // specified time. The ping sent when the previous stall ended is answered
+    // in time.
+    private void stall(final long time, final long duration) {
+        answerPings();
+        assertEquals(THRESHOLD, mWatch.poll(time, THRESHOLD));
+        assertEquals(Long.MAX_VALUE, mWatch.poll(time + THRESHOLD, THRESHOLD));
+        answerPings();
+        mWatch.poll(time + duration, THRESHOLD);
+    }
+
+    @Test
+    public void answeredPingIsNotStall() {
+        assertEquals(THRESHOLD, mWatch.poll(0, THRESHOLD));
+        assertEquals(THRESHOLD - 40, mWatch.poll(40, THRESHOLD));
+        answerPings();
+
+        // The next ping waits for the rest of the period.
+        assertEquals(THRESHOLD - 60, mWatch.poll(60, THRESHOLD));
+        assertEquals(THRESHOLD, mWatch.poll(THRESHOLD, THRESHOLD));
+
+        assertEquals(0, mUiThread.samples);
+        assertTrue(mWatchdog.getStalls().isEmpty());
+    }
+
+    @Test
+    public void stallIsSampledOnce() {
+        assertEquals(THRESHOLD, mWatch.poll(1000, THRESHOLD));
+        assertEquals(1, mWatch.poll(1099, THRESHOLD));
+        assertEquals(0, mUiThread.samples);
+
+        // Past the threshold, the stack is sampled, and the watch waits for
+        // the answer without sampling again.
+        assertEquals(Long.MAX_VALUE, mWatch.poll(1100, THRESHOLD));
+        assertEquals(Long.MAX_VALUE, mWatch.poll(1200, THRESHOLD));
+        assertEquals(Long.MAX_VALUE, mWatch.poll(1300, THRESHOLD));
+        assertEquals(1, mUiThread.samples);
+        assertTrue(mWatchdog.getStalls().isEmpty());
+
+        // The stall ends with the answer, and the next ping goes out at once.
+        answerPings();
+        assertEquals(THRESHOLD, mWatch.poll(1350, THRESHOLD));
+
+        final List<UiThreadWatchdog.Stall> stalls = mWatchdog.getStalls();
+        assertEquals(1, stalls.size());
+        final UiThreadWatchdog.Stall stall = stalls.get(0);
+        assertEquals(1, stall.getCount());
+        assertEquals(350, stall.getTotalMillis());
+        assertEquals(350, stall.getMaxMillis());
+        assertEquals(1350, stall.getLastTime());
+        assertArrayEquals(mUiThread.stack, stall.getStack());
+    }
+
+    @Test
+    public void stallsInSamePlaceAreGrouped() {
+        stall(0, 200);
+        stall(1000, 500);
+        mUiThread.stack = stack("elsewhere");
+        stall(2000, 150);
+
+        assertEquals(3, mUiThread.samples);
+        final List<UiThreadWatchdog.Stall> stalls = mWatchdog.getStalls();
+        assertEquals(2, stalls.size());
+        assertEquals(2, stalls.get(0).getCount());
+        assertEquals(700, stalls.get(0).getTotalMillis());
+        assertEquals(500, stalls.get(0).getMaxMillis());
+        assertEquals(1, stalls.get(1).getCount());
+        assertEquals(150, stalls.get(1).getTotalMillis());
+    }
+
+    @Test
+    public void reportIsBounded() {
+        long time = 0;
+        for (int i = 0; i < UiThreadWatchdog.MAX_STALLS; i++) {
+            mUiThread.stack = stack("stall" + i);
+            stall(time, 200 + i);
+            time += 1000;
+        }
+        assertEquals(UiThreadWatchdog.MAX_STALLS, mWatchdog.getStalls().size());
+        assertEquals(0, mWatchdog.getDroppedStallCount());
+
+        // A stall no longer than the shortest entry is left out.
+        mUiThread.stack = stack("short");
+        stall(time, 200);
+        time += 1000;
+        assertEquals(UiThreadWatchdog.MAX_STALLS, mWatchdog.getStalls().size());
+        assertEquals(1, mWatchdog.getDroppedStallCount());
+
+        // A longer one takes the place of the shortest entry.
+        mUiThread.stack = stack("long");
+        stall(time, 1000);
+        final List<UiThreadWatchdog.Stall> stalls = mWatchdog.getStalls();
+        assertEquals(UiThreadWatchdog.MAX_STALLS, stalls.size());
+        assertEquals(2, mWatchdog.getDroppedStallCount());
+        assertArrayEquals(stack("long"), stalls.get(0).getStack());
+        assertEquals(201, stalls.get(stalls.size() - 1).getTotalMillis());
+
+        mWatchdog.clearStalls();
+        assertTrue(mWatchdog.getStalls().isEmpty());
+        assertEquals(0, mWatchdog.getDroppedStallCount());
+    }
+}
@@ -0,0 +1,271 @@
+package org.mozilla.geckoview;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assume.assumeTrue;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executor;
+
+/**
+ * Microbenchmarks for GeckoResult chaining and fan-in. Each benchmark prints the
+ * time and the bytes allocated per operation, and checks the outcome. Timings
+ * taken under the test runtime are only good for comparing the variants
+ * measured side by side.
+ *
+ * The benchmarks are skipped unless the unit tests are run with -Pbenchmarks.
+ */
+@RunWith(RobolectricTestRunner.class)
+public class GeckoResultBenchmark {
+    private static final Executor DIRECT = new Executor() {
+        @Override
+        public void execute(final Runnable runnable) {
+            runnable.run();
+        }
+    };
+
+    private static final int WARMUP = 2000;
+    private static final int ITERATIONS = 20000;
+    private static final int FAN_IN = 8;
+    private static final int STAGES = 16;
+
+    @Before
+    public void setUp() {
+        assumeTrue("Benchmarks are enabled with -Pbenchmarks", Boolean.getBoolean("benchmarks"));
+    }
+
+    private interface Operation {
+        // Runs the operation once and returns its outcome.
+        Object run();
+    }
+
+    private static final class Measurement {
+        public final double nanosPerOp;
+        // Negative if allocations cannot be counted.
+        public final double bytesPerOp;
+
+        public Measurement(final double nanosPerOp, final double bytesPerOp) {
+            this.nanosPerOp = nanosPerOp;
+            this.bytesPerOp = bytesPerOp;
+        }
+    }
+
+    private static long getAllocatedBytes() {
+        final java.lang.management.ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+        if (!(bean instanceof com.sun.management.ThreadMXBean)) {
+            return -1;
+        }
+        final com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) bean;
+        return threads.isThreadAllocatedMemorySupported() &&
+               threads.isThreadAllocatedMemoryEnabled()
+               ? threads.getThreadAllocatedBytes(Thread.currentThread().getId()) : -1;
+    }
+
+    private static Measurement measure(final String name, final Object expected,
+                                       final Operation operation) {
+        for (int i = 0; i < WARMUP; i++) {
+            assertEquals(name, expected, operation.run());
+        }
+
+        final long startBytes = getAllocatedBytes();
+        final long start = System.nanoTime();
+        Object outcome = null;
+        for (int i = 0; i < ITERATIONS; i++) {
+            outcome = operation.run();
+        }
+        final long nanos = System.nanoTime() - start;
+        final long endBytes = getAllocatedBytes();
+        assertEquals(name, expected, outcome);
+
+        final Measurement measurement = new Measurement(
+                (double) nanos / ITERATIONS,
+                startBytes < 0 ? -1 : (double) (endBytes - startBytes) / ITERATIONS);
+        System.out.println(String.format("%s: %.0f ns/op, %.0f bytes/op", name,
+                                         measurement.nanosPerOp, measurement.bytesPerOp));
+        return measurement;
+    }
+
+    private static <T> GeckoResult<T> pending() {
+        return new GeckoResult<>(DIRECT);
+    }
+
+    private static <T> GeckoResult<T> value(final T value) {
+        final GeckoResult<T> result = new GeckoResult<>(DIRECT);
+        result.complete(value);
+        return result;
+    }
+
+    private static List<GeckoResult<Integer>> pendingInputs() {
+        final List<GeckoResult<Integer>> inputs = new ArrayList<>(FAN_IN);
+        for (int i = 0; i < FAN_IN; i++) {
+            inputs.add(GeckoResultBenchmark.<Integer>pending());
+        }
+        return inputs;
+    }
+
+    private static int sum(final List<Integer> values) {
+        int sum = 0;
+        for (final Integer value : values) {
+            sum += value;
+        }
+        return sum;
+    }
+
+    // Sum of the values each fan-in benchmark completes its inputs with.
+    private static final int FAN_IN_SUM = FAN_IN * (FAN_IN - 1) / 2;
+
+    // Collects the values of the inputs by chaining onto each in turn, as
+    // callers did before allOf().
+    private static GeckoResult<List<Integer>> nestedAll(final List<GeckoResult<Integer>> inputs) {
+        GeckoResult<List<Integer>> chain = value((List<Integer>) new ArrayList<Integer>(FAN_IN));
+        for (final GeckoResult<Integer> input : inputs) {
+            chain = chain.then(new GeckoResult.OnValueListener<List<Integer>, List<Integer>>() {
+                @Override
+                public GeckoResult<List<Integer>> onValue(final List<Integer> values) {
+                    return input.then(new GeckoResult.OnValueListener<Integer, List<Integer>>() {
+                        @Override
+                        public GeckoResult<List<Integer>> onValue(final Integer v) {
+                            values.add(v);
+                            return value(values);
+                        }
+                    }, null, DIRECT);
+                }
+            }, null, DIRECT);
+        }
+        return chain;
+    }
+
+    private static Object completeAndSum(final List<GeckoResult<Integer>> inputs,
+                                         final GeckoResult<List<Integer>> all) {
+        final int[] sum = new int[] { -1 };
+        all.then(new GeckoResult.OnValueListener<List<Integer>, Void>() {
+            @Override
+            public GeckoResult<Void> onValue(final List<Integer> values) {
+                sum[0] = sum(values);
+                return null;
+            }
+        }, null, DIRECT);
+        for (int i = 0; i < FAN_IN; i++) {
+            inputs.get(i).complete(i);
+        }
+        return sum[0];
+    }
+
+    @Test
+    public void allOfAgainstNestedChain() {
+        measure("nested then() fan-in of " + FAN_IN, FAN_IN_SUM,
+                new Operation() {
+                    @Override
+                    public Object run() {
+                        final List<GeckoResult<Integer>> inputs = pendingInputs();
+                        return completeAndSum(inputs, nestedAll(inputs));
+                    }
+                });
+        measure("allOf() fan-in of " + FAN_IN, FAN_IN_SUM,
+                new Operation() {
+                    @Override
+                    public Object run() {
+                        final List<GeckoResult<Integer>> inputs = pendingInputs();
+                        return completeAndSum(inputs, GeckoResult.allOf(inputs));
+                    }
+                });
+    }
+
+    // Forwards the first input to complete, as callers did before race().
+    private static GeckoResult<Integer> nestedRace(final List<GeckoResult<Integer>> inputs) {
+        final GeckoResult<Integer> race = pending();
+        final boolean[] decided = new boolean[1];
+        for (final GeckoResult<Integer> input : inputs) {
+            input.then(new GeckoResult.OnValueListener<Integer, Void>() {
+                @Override
+                public GeckoResult<Void> onValue(final Integer v) {
+                    if (!decided[0]) {
+                        decided[0] = true;
+                        race.complete(v);
+                    }
+                    return null;
+                }
+            }, null, DIRECT);
+        }
+        return race;
+    }
+
+    private static Object completeFirst(final List<GeckoResult<Integer>> inputs,
+                                        final GeckoResult<Integer> race) {
+        final int[] winner = new int[] { -1 };
+        race.then(new GeckoResult.OnValueListener<Integer, Void>() {
+            @Override
+            public GeckoResult<Void> onValue(final Integer v) {
+                winner[0] = v;
+                return null;
+            }
+        }, null, DIRECT);
+        for (int i = FAN_IN - 1; i >= 0; i--) {
+            inputs.get(i).complete(i);
+        }
+        return winner[0];
+    }
+
+    @Test
+    public void raceAgainstNestedChain() {
+        measure("then() race of " + FAN_IN, FAN_IN - 1,
+                new Operation() {
+                    @Override
+                    public Object run() {
+                        final List<GeckoResult<Integer>> inputs = pendingInputs();
+                        return completeFirst(inputs, nestedRace(inputs));
+                    }
+                });
+        measure("race() of " + FAN_IN, FAN_IN - 1,
+                new Operation() {
+                    @Override
+                    public Object run() {
+                        final List<GeckoResult<Integer>> inputs = pendingInputs();
+                        return completeFirst(inputs, GeckoResult.race(inputs));
+                    }
+                });
+    }
+
+    @Test
+    public void chainedStages() {
+        // Passes the value on; a null result completes the next stage with null.
+        final GeckoResult.OnValueListener<Integer, Integer> stage =
+                new GeckoResult.OnValueListener<Integer, Integer>() {
+                    @Override
+                    public GeckoResult<Integer> onValue(final Integer v) {
+                        return null;
+                    }
+                };
+        final Measurement chain = measure("chain of " + STAGES + " stages", STAGES,
+                new Operation() {
+                    @Override
+                    public Object run() {
+                        final GeckoResult<Integer> head = pending();
+                        GeckoResult<Integer> tail = head;
+                        for (int i = 0; i < STAGES; i++) {
+                            tail = tail.then(stage, null, DIRECT);
+                        }
+                        final int[] stages = new int[] { -1 };
+                        tail.then(new GeckoResult.OnValueListener<Integer, Void>() {
+                            @Override
+                            public GeckoResult<Void> onValue(final Integer v) {
+                                stages[0] = STAGES;
+                                return null;
+                            }
+                        }, null, DIRECT);
+                        head.complete(0);
+                        return stages[0];
+                    }
+                });
+        if (chain.bytesPerOp >= 0) {
+            System.out.println(String.format("%.0f bytes per chained stage",
+                                             chain.bytesPerOp / (STAGES + 1)));
+        }
+    }
+}
@@ -0,0 +1,516 @@
+package org.mozilla.geckoview;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import static org.junit.Assume.assumeTrue;
+
+import org.mozilla.gecko.util.ThreadUtils;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.Shadows;
+
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CyclicBarrier;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+@RunWith(RobolectricTestRunner.class)
+public class GeckoResultTest {
+    // Runs listeners on the completing or registering thread, so that results
+    // do not need a Looper.
+    private static final Executor DIRECT = new Executor() {
+        @Override
+        public void execute(final Runnable runnable) {
+            runnable.run();
+        }
+    };
+
+    private static final int ITERATIONS = 2000;
+    private static final int REGISTERING_THREADS = 4;
+    private static final int LISTENERS_PER_THREAD = 25;
+    private static final int COMPLETING_THREADS = 2;
+
+    private ExecutorService mPool;
+
+    @Before
+    public void setUp() {
+        mPool = Executors.newFixedThreadPool(REGISTERING_THREADS + COMPLETING_THREADS);
+    }
+
+    @After
+    public void tearDown() {
+        mPool.shutdownNow();
+    }
+
+    // Runs all tasks at once, as far as the pool allows, and waits for them.
+    private void runConcurrently(final List<Callable<Void>> tasks) throws Exception {
+        final CyclicBarrier barrier = new CyclicBarrier(tasks.size());
+        final List<Future<Void>> futures = new ArrayList<>(tasks.size());
+        for (final Callable<Void> task : tasks) {
+            futures.add(mPool.submit(new Callable<Void>() {
+                @Override
+                public Void call() throws Exception {
+                    barrier.await();
+                    return task.call();
+                }
+            }));
+        }
+        for (final Future<Void> future : futures) {
+            future.get();
+        }
+    }
+
+    private static Callable<Void> addListeners(final GeckoResult<Integer> result,
+                                               final AtomicInteger calls) {
+        return new Callable<Void>() {
+            @Override
+            public Void call() {
+                for (int i = 0; i < LISTENERS_PER_THREAD; i++) {
+                    result.then(new GeckoResult.OnValueListener<Integer, Void>() {
+                        @Override
+                        public GeckoResult<Void> onValue(final Integer value) {
+                            calls.incrementAndGet();
+                            return null;
+                        }
+                    }, new GeckoResult.OnExceptionListener<Void>() {
+                        @Override
+                        public GeckoResult<Void> onException(final Throwable exception) {
+                            calls.incrementAndGet();
+                            return null;
+                        }
+                    }, DIRECT);
+                }
+                return null;
+            }
+        };
+    }
+
+    @Test
+    public void concurrentCompletionIsDeliveredExactlyOnce() throws Exception {
+        for (int iteration = 0; iteration < ITERATIONS; iteration++) {
+            final GeckoResult<Integer> result = new GeckoResult<>(DIRECT);
+            final AtomicInteger calls = new AtomicInteger();
+            final AtomicInteger completions = new AtomicInteger();
+
+            final List<Callable<Void>> tasks = new ArrayList<>();
+            for (int i = 0; i < REGISTERING_THREADS; i++) {
+                tasks.add(addListeners(result, calls));
+            }
+            tasks.add(new Callable<Void>() {
+                @Override
+                public Void call() {
+                    try {
+                        result.complete(42);
+                        completions.incrementAndGet();
+                    } catch (final IllegalStateException e) {
+                        // Lost the race.
+                    }
+                    return null;
+                }
+            });
+            tasks.add(new Callable<Void>() {
+                @Override
+                public Void call() {
+                    try {
+                        result.completeExceptionally(new Exception());
+                        completions.incrementAndGet();
+                    } catch (final IllegalStateException e) {
+                        // Lost the race.
+                    }
+                    return null;
+                }
+            });
+            runConcurrently(tasks);
+
+            assertEquals("Completions in iteration " + iteration, 1, completions.get());
+            assertEquals("Listener calls in iteration " + iteration,
+                         REGISTERING_THREADS * LISTENERS_PER_THREAD, calls.get());
+        }
+    }
+
+    @Test
+    public void concurrentCancellationIsDeliveredExactlyOnce() throws Exception {
+        for (int iteration = 0; iteration < ITERATIONS; iteration++) {
+            final GeckoResult<Integer> result = new GeckoResult<>(DIRECT);
+            final AtomicInteger calls = new AtomicInteger();
+            final AtomicInteger cancellations = new AtomicInteger();
+            final AtomicInteger delegateCalls = new AtomicInteger();
+            result.setCancellationDelegate(new GeckoResult.CancellationDelegate() {
+                @Override
+                public void onCancel() {
+                    delegateCalls.incrementAndGet();
+                }
+            });
+
+            final List<Callable<Void>> tasks = new ArrayList<>();
+            for (int i = 0; i < REGISTERING_THREADS; i++) {
+                tasks.add(addListeners(result, calls));
+            }
+            tasks.add(new Callable<Void>() {
+                @Override
+                public Void call() {
+                    // Completing a cancelled result is allowed.
+                    result.complete(42);
+                    return null;
+                }
+            });
+            tasks.add(new Callable<Void>() {
+                @Override
+                public Void call() {
+                    if (result.cancel()) {
+                        cancellations.incrementAndGet();
+                    }
+                    return null;
+                }
+            });
+            runConcurrently(tasks);
+
+            assertEquals("Listener calls in iteration " + iteration,
+                         REGISTERING_THREADS * LISTENERS_PER_THREAD, calls.get());
+            assertEquals(result.isCancelled() ? 1 : 0, cancellations.get());
+            assertEquals(cancellations.get(), delegateCalls.get());
+        }
+    }
+
+    @Test
+    public void listenerAddedAfterCompletionRuns() throws Exception {
+        final GeckoResult<Integer> result = new GeckoResult<>(DIRECT);
+        result.complete(42);
+        final AtomicInteger calls = new AtomicInteger();
+        addListeners(result, calls).call();
+        assertEquals(LISTENERS_PER_THREAD, calls.get());
+        assertFalse(result.isCancelled());
+    }
+
+    private static <T> GeckoResult.OnValueListener<T, Void> ignore() {
+        return new GeckoResult.OnValueListener<T, Void>() {
+            @Override
+            public GeckoResult<Void> onValue(final T value) {
+                return null;
+            }
+        };
+    }
+
+    // Queues what it is given, so that the order of dispatch can be checked.
+    private static final class QueueExecutor implements Executor {
+        private final List<Runnable> mQueue;
+
+        public QueueExecutor(final List<Runnable> queue) {
+            mQueue = queue;
+        }
+
+        @Override
+        public void execute(final Runnable runnable) {
+            mQueue.add(runnable);
+        }
+    }
+
+    @Test
+    public void listenersAreDispatchedInOrder() {
+        // Both executors share one queue, which shows the order listeners were
+        // handed to them in.
+        final List<Runnable> queue = new ArrayList<>();
+        final GeckoResult<Integer> result = new GeckoResult<>(new QueueExecutor(queue));
+        final Executor other = new QueueExecutor(queue);
+        final List<Integer> order = new ArrayList<>();
+        for (int i = 0; i < 6; i++) {
+            final int index = i;
+            result.then(new GeckoResult.OnValueListener<Integer, Void>() {
+                @Override
+                public GeckoResult<Void> onValue(final Integer value) {
+                    order.add(index);
+                    return null;
+                }
+            }, null, i % 3 == 0 ? null : other);
+        }
+
+        result.complete(42);
+        for (int i = 0; i < queue.size(); i++) {
+            queue.get(i).run();
+        }
+        assertEquals(Arrays.asList(0, 1, 2, 3, 4, 5), order);
+    }
+
+    @Test
+    public void uncaughtErrorHandledOnOtherExecutorIsNotRethrown() {
+        final GeckoResult<Integer> head = new GeckoResult<>(DIRECT);
+        final GeckoResult<Void> thrown = head.then(new GeckoResult.OnValueListener<Integer, Void>() {
+            @Override
+            public GeckoResult<Void> onValue(final Integer value) {
+                throw new IllegalStateException();
+            }
+        }, null, DIRECT);
+        final AtomicInteger handled = new AtomicInteger();
+        thrown.then(null, new GeckoResult.OnExceptionListener<Void>() {
+            @Override
+            public GeckoResult<Void> onException(final Throwable exception) {
+                handled.incrementAndGet();
+                return null;
+            }
+        }, new Executor() {
+            // Runs directly, but is not the executor of the result.
+            @Override
+            public void execute(final Runnable runnable) {
+                runnable.run();
+            }
+        });
+
+        // The listener on its own executor handles the error, so completing
+        // does not throw UncaughtException.
+        head.complete(42);
+        assertEquals(1, handled.get());
+    }
+
+    private static com.sun.management.ThreadMXBean getThreadBean() {
+        final java.lang.management.ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+        if (!(bean instanceof com.sun.management.ThreadMXBean)) {
+            return null;
+        }
+        final com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) bean;
+        return threads.isThreadAllocatedMemorySupported() &&
+               threads.isThreadAllocatedMemoryEnabled() ? threads : null;
+    }
+
+    // Builds a chain of stages onto a pending result and completes it.
+    private static void runChain(final int stages) {
+        final GeckoResult<Integer> head = new GeckoResult<>(DIRECT);
+        GeckoResult<Void> tail = head.then(GeckoResultTest.<Integer>ignore(), null, DIRECT);
+        for (int i = 1; i < stages; i++) {
+            tail = tail.then(GeckoResultTest.<Void>ignore(), null, DIRECT);
+        }
+        head.complete(0);
+    }
+
+    @Test
+    public void chainedStageAllocationIsBounded() {
+        final com.sun.management.ThreadMXBean threads = getThreadBean();
+        assumeTrue("Thread allocation counting is not supported", threads != null);
+
+        final int stages = 16;
+        final int chains = 1000;
+        for (int i = 0; i < chains; i++) {
+            runChain(stages);
+        }
+
+        // The best of a few rounds, so that one-off work the runtime does on
+        // this thread, such as loading a class, is not counted.
+        final long threadId = Thread.currentThread().getId();
+        long bytes = Long.MAX_VALUE;
+        for (int round = 0; round < 5; round++) {
+            final long start = threads.getThreadAllocatedBytes(threadId);
+            for (int i = 0; i < chains; i++) {
+                runChain(stages);
+            }
+            bytes = Math.min(bytes, threads.getThreadAllocatedBytes(threadId) - start);
+        }
+
+        // A stage is a result and its listener, with no allocation per
+        // registration or completion on top. The compiler can only lower this.
+        final long bytesPerStage = bytes / (chains * stages);
+        assertTrue(bytesPerStage + " bytes per stage", bytesPerStage <= 192);
+    }
+
+    @Test
+    public void cancelPropagatesToListenerResult() {
+        final GeckoResult<Integer> head = new GeckoResult<>(DIRECT);
+        final GeckoResult<Integer> inner = new GeckoResult<>(DIRECT);
+        final GeckoResult<Integer> downstream = head.then(
+                new GeckoResult.OnValueListener<Integer, Integer>() {
+                    @Override
+                    public GeckoResult<Integer> onValue(final Integer value) {
+                        return inner;
+                    }
+                }, null, DIRECT);
+
+        head.complete(1);
+        assertTrue(downstream.cancel());
+        assertTrue(inner.isCancelled());
+    }
+
+    @Test
+    public void cancelDuringListenerReachesListenerResult() {
+        final GeckoResult<Integer> head = new GeckoResult<>(DIRECT);
+        final GeckoResult<Integer> inner = new GeckoResult<>(DIRECT);
+        final List<GeckoResult<Integer>> downstream = new ArrayList<>();
+        downstream.add(head.then(new GeckoResult.OnValueListener<Integer, Integer>() {
+            @Override
+            public GeckoResult<Integer> onValue(final Integer value) {
+                // Cancelled after the listener started, but before the result
+                // it returns is linked.
+                downstream.get(0).cancel();
+                return inner;
+            }
+        }, null, DIRECT));
+
+        head.complete(1);
+        assertTrue(downstream.get(0).isCancelled());
+        assertTrue(inner.isCancelled());
+    }
+
+    @Test
+    public void cancelKeepsUpstreamWithOtherDependents() {
+        final GeckoResult<Integer> head = new GeckoResult<>(DIRECT);
+        final GeckoResult<Void> first = head.then(GeckoResultTest.<Integer>ignore(), null, DIRECT);
+        final GeckoResult<Void> second = head.then(GeckoResultTest.<Integer>ignore(), null, DIRECT);
+
+        assertTrue(first.cancel());
+        assertFalse(head.isCancelled());
+        assertTrue(second.cancel());
+        assertTrue(head.isCancelled());
+    }
+
+    @Test
+    public void combinatorsReleaseInputsOnCancel() {
+        final List<GeckoResult<Integer>> inputs = new ArrayList<>();
+        for (int i = 0; i < 3; i++) {
+            inputs.add(new GeckoResult<Integer>(DIRECT));
+        }
+        // Another consumer keeps the first input alive.
+        final GeckoResult<Void> other = inputs.get(0).then(
+                GeckoResultTest.<Integer>ignore(), null, DIRECT);
+
+        final GeckoResult<List<Integer>> all = GeckoResult.allOf(inputs);
+        final GeckoResult<Integer> any = GeckoResult.anyOf(inputs);
+        final GeckoResult<Integer> race = GeckoResult.race(inputs);
+
+        assertTrue(all.cancel());
+        assertTrue(any.cancel());
+        assertFalse(inputs.get(1).isCancelled());
+        assertTrue(race.cancel());
+
+        assertFalse(inputs.get(0).isCancelled());
+        assertTrue(inputs.get(1).isCancelled());
+        assertTrue(inputs.get(2).isCancelled());
+        assertFalse(other.isCancelled());
+    }
+
+    @Test(expected = IllegalThreadStateException.class)
+    public void pollThrowsOnUiThread() throws Exception {
+        new GeckoResult<Integer>(DIRECT).poll(0);
+    }
+
+    @Test
+    public void pollWaitsForCompletion() throws Exception {
+        final GeckoResult<Integer> result = new GeckoResult<>(DIRECT);
+        final Future<Integer> polled = mPool.submit(new Callable<Integer>() {
+            @Override
+            public Integer call() throws Exception {
+                return result.poll(10000);
+            }
+        });
+        Thread.sleep(10);
+        result.complete(42);
+        assertEquals(42, (int) polled.get());
+    }
+
+    @Test
+    public void pollIgnoresLocksOnResult() throws Exception {
+        final GeckoResult<Integer> result = new GeckoResult<>(DIRECT);
+        final Future<Integer> polled = mPool.submit(new Callable<Integer>() {
+            @Override
+            public Integer call() throws Exception {
+                return result.poll(10000);
+            }
+        });
+        Thread.sleep(10);
+
+        // Code that holds the result's own monitor does not keep the waiter
+        // from waking up.
+        synchronized (result) {
+            result.complete(42);
+            assertEquals(42, (int) polled.get(10, TimeUnit.SECONDS));
+        }
+    }
+
+    @Test
+    public void timedOutPollsLeaveNothingBehind() throws Exception {
+        final GeckoResult<Integer> result = new GeckoResult<>(DIRECT);
+        final GeckoResult<Void> downstream = result.then(
+                GeckoResultTest.<Integer>ignore(), null, DIRECT);
+        mPool.submit(new Callable<Void>() {
+            @Override
+            public Void call() throws Exception {
+                for (int i = 0; i < 100; i++) {
+                    try {
+                        result.poll(1);
+                        fail("Poll did not time out");
+                    } catch (final TimeoutException e) {
+                        // Expected.
+                    }
+                }
+                return null;
+            }
+        }).get();
+
+        // Only the listener of the downstream result is registered.
+        assertEquals(1, result.getPendingListenerCount());
+
+        // And the waits did not count as dependents keeping the result alive.
+        assertTrue(downstream.cancel());
+        assertTrue(result.isCancelled());
+    }
+
+    @Test
+    public void pollWrapsException() throws Exception {
+        final GeckoResult<Integer> result = new GeckoResult<>(DIRECT);
+        final Exception exception = new Exception();
+        result.completeExceptionally(exception);
+        try {
+            mPool.submit(new Callable<Integer>() {
+                @Override
+                public Integer call() throws Exception {
+                    return result.poll(0);
+                }
+            }).get();
+            fail("Poll did not throw");
+        } catch (final ExecutionException e) {
+            assertTrue(e.getCause() instanceof ExecutionException);
+            assertSame(exception, e.getCause().getCause());
+        }
+    }
+
+    @Test
+    public void futureOfExpiredResultIsCancelled() throws Exception {
+        final GeckoResult<Integer> result = new GeckoResult<>(DIRECT);
+        result.setDeadline(10);
+        final Future<Throwable> got = mPool.submit(new Callable<Throwable>() {
+            @Override
+            public Throwable call() throws Exception {
+                try {
+                    result.toFuture().get(10, TimeUnit.SECONDS);
+                    return null;
+                } catch (final CancellationException e) {
+                    return e;
+                }
+            }
+        });
+
+        // Deadlines run on the background timer thread, whose clock only
+        // moves when the test runtime is told to.
+        Shadows.shadowOf(ThreadUtils.getBackgroundHandler().getLooper())
+               .idle(10, TimeUnit.MILLISECONDS);
+
+        final Throwable cancellation = got.get();
+        assertTrue(result.isCancelled());
+        assertTrue(cancellation instanceof CancellationException);
+        assertTrue(cancellation.getCause() instanceof TimeoutException);
+    }
+}